@@ -0,0 +1,84 @@
+package creation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 四种单例实现的getInstance()和getId()的吞吐(ops/us), 顺带对比号段式和Snowflake式的getId()
+ * 每个实现单独一个@Benchmark方法, 调用点各自内联, 每组参数在新的JVM里跑, 结果不受运行顺序影响
+ * 用法: java -cp target/benchmarks.jar creation.IdGeneratorBenchmark 依次跑1/4/16/64线程,
+ *      或者 java -jar target/benchmarks.jar IdGeneratorBenchmark -t 16 只跑一种线程数
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class IdGeneratorBenchmark {
+
+    @Benchmark
+    public void eagerGetInstance(Blackhole blackhole) {
+        blackhole.consume(IdGenerator1.getInstance());
+    }
+
+    @Benchmark
+    public void synchronizedGetInstance(Blackhole blackhole) {
+        blackhole.consume(IdGenerator2.getInstance());
+    }
+
+    @Benchmark
+    public void doubleCheckedGetInstance(Blackhole blackhole) {
+        blackhole.consume(IdGenerator3.getInstance());
+    }
+
+    @Benchmark
+    public void enumInstance(Blackhole blackhole) {
+        blackhole.consume(IdGenerator4.INSTANCE);
+    }
+
+    @Benchmark
+    public void eagerGetId(Blackhole blackhole) {
+        blackhole.consume(IdGenerator1.getInstance().getId());
+    }
+
+    @Benchmark
+    public void synchronizedGetId(Blackhole blackhole) {
+        blackhole.consume(IdGenerator2.getInstance().getId());
+    }
+
+    @Benchmark
+    public void doubleCheckedGetId(Blackhole blackhole) {
+        blackhole.consume(IdGenerator3.getInstance().getId());
+    }
+
+    @Benchmark
+    public void enumGetId(Blackhole blackhole) {
+        blackhole.consume(IdGenerator4.INSTANCE.getId());
+    }
+
+    @Benchmark
+    public void blockLeasingGetId(Blackhole blackhole) {
+        blackhole.consume(IdGenerator5.getInstance().getId());
+    }
+
+    @Benchmark
+    public void snowflakeGetId(Blackhole blackhole) {
+        blackhole.consume(IdGenerator6.INSTANCE.getId());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for(int threads : new int[] {1, 4, 16, 64})
+            new Runner(new OptionsBuilder().include(IdGeneratorBenchmark.class.getName()).threads(threads).build()).run();
+    }
+}
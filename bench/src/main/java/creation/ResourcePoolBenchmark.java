@@ -0,0 +1,71 @@
+package creation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 无锁资源池和synchronized资源池一次借出加归还的吞吐(ops/us), maxTotal分别为8和64
+ * 用法: java -cp target/benchmarks.jar creation.ResourcePoolBenchmark 依次跑1/4/16/64线程
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ResourcePoolBenchmark {
+
+    @Param({"8", "64"})
+    private int maxTotal;
+
+    private ResourcePool<Object> pool;
+    private SynchronizedResourcePool<Object> baseline;
+
+    @Setup
+    public void setUp() throws Exception {
+        ResourcePoolConfig3 config = new ResourcePoolConfig3.Builder()
+                .setName("bench").setMaxTotal(maxTotal).setMaxIdle(maxTotal).build();
+        pool = new ResourcePool<>(config, Object::new);
+        baseline = new SynchronizedResourcePool<>(config, Object::new);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Benchmark
+    public void lockFree(Blackhole blackhole) throws Exception {
+        try (PooledResource<Object> resource = pool.borrow(1, TimeUnit.SECONDS)) {
+            blackhole.consume(resource.get());
+        }
+    }
+
+    @Benchmark
+    public void synchronizedPool(Blackhole blackhole) throws Exception {
+        Object resource = baseline.borrow(1, TimeUnit.SECONDS);
+        blackhole.consume(resource);
+        baseline.giveBack(resource);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for(int threads : new int[] {1, 4, 16, 64})
+            new Runner(new OptionsBuilder().include(ResourcePoolBenchmark.class.getName()).threads(threads).build()).run();
+    }
+}
@@ -0,0 +1,67 @@
+package structural;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MetricsCollector.recordRequest的总吞吐(ops/us), 每个线程轮流记录4个接口
+ * 分别测按RequestInfo记录(每次查一次接口名)和按apiId记录两条路径; 时间戳直接给定, 不把System.nanoTime()算进去
+ * 用法: java -cp target/benchmarks.jar structural.MetricsCollectorBenchmark 依次跑1/2/4/.../64线程
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class MetricsCollectorBenchmark {
+
+    private final MetricsCollector collector = new MetricsCollector();
+    private final RequestInfo[] requests = {
+            new RequestInfo("login", 1, 0, 1), new RequestInfo("register", 3, 0, 3),
+            new RequestInfo("logout", 0, 0, 0), new RequestInfo("profile", 12, 0, 12)};
+    private final int[] apiIds = new int[requests.length];
+
+    /**
+     * 每个线程自己的循环下标
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int index;
+    }
+
+    @Setup
+    public void setUp() {
+        for(int i = 0; i < requests.length; i++)
+            apiIds[i] = collector.register(requests[i].name);
+    }
+
+    @Benchmark
+    public void recordRequestInfo(Cursor cursor) {
+        collector.recordRequest(requests[cursor.index++ & 3]);
+    }
+
+    @Benchmark
+    public void recordApiId(Cursor cursor) {
+        int index = cursor.index++;
+        collector.recordRequest(apiIds[index & 3], index, requests[index & 3].responseTime);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for(int threads = 1; threads <= 64; threads *= 2)
+            new Runner(new OptionsBuilder().include(MetricsCollectorBenchmark.class.getName()).threads(threads).build()).run();
+    }
+}
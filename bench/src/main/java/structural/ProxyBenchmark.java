@@ -0,0 +1,110 @@
+package structural;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单线程下每次调用的耗时(ns/op): 直接调用、手写代理、生成的隐藏类代理、java.lang.reflect.Proxy,
+ * 以及按RequestInfo记录的旧写法
+ * 加-prof gc运行时看gc.alloc.rate.norm: 按apiId记录的代理应为0字节/次
+ * 旧写法的RequestInfo在内联后可能被逃逸分析消掉, 加-jvmArgsAppend -XX:-DoEscapeAnalysis能看到它真实的分配
+ * 用法: java -cp target/benchmarks.jar structural.ProxyBenchmark (带-prof gc)
+ *      或者 java -jar target/benchmarks.jar ProxyBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@Threads(1)
+@State(Scope.Thread)
+public class ProxyBenchmark {
+
+    private final UserController2 target = new UserController2();
+    private final IUserController handWritten = new UserControllerProxy1(new MetricsCollector(), target);
+    private final IUserController hiddenClass =
+            TimingProxyFactory.create(IUserController.class, target, new MetricsCollector());
+    private final IUserController reflection = reflectionProxy(target, new MetricsCollector());
+    private final IUserController legacy = legacyProxy(new MetricsCollector());
+
+    @Benchmark
+    public void direct() {
+        target.login();
+    }
+
+    @Benchmark
+    public void handWrittenProxy() {
+        handWritten.login();
+    }
+
+    @Benchmark
+    public void hiddenClassProxy() {
+        hiddenClass.login();
+    }
+
+    @Benchmark
+    public void reflectionProxy() {
+        reflection.login();
+    }
+
+    @Benchmark
+    public void requestInfoProxy() {
+        legacy.login();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ProxyBenchmark.class.getName()).addProfiler(GCProfiler.class).build()).run();
+    }
+
+    private static IUserController reflectionProxy(IUserController target, MetricsCollector collector) {
+        Map<Method, Integer> apiIds = new HashMap<>();
+        for(Method method : IUserController.class.getMethods())
+            apiIds.put(method, collector.register(method.getName()));
+        return (IUserController) java.lang.reflect.Proxy.newProxyInstance(IUserController.class.getClassLoader(),
+                new Class<?>[] {IUserController.class}, (proxy, method, arguments) -> {
+                    Integer apiId = apiIds.get(method);
+                    if(apiId == null)
+                        return method.invoke(target, arguments);
+                    long startNanos = System.nanoTime();
+                    Object result = method.invoke(target, arguments);
+                    collector.recordRequest(apiId, startNanos, System.nanoTime() - startNanos);
+                    return result;
+                });
+    }
+
+    /**
+     * 改造前的写法：毫秒时间戳, 每次请求new一个RequestInfo
+     */
+    private static IUserController legacyProxy(MetricsCollector collector) {
+        return new IUserController() {
+            @Override
+            public void login() {
+                long startTimestamp = System.currentTimeMillis();
+                long endTimestamp = System.currentTimeMillis();
+                collector.recordRequest(new RequestInfo("login", endTimestamp - startTimestamp, startTimestamp, endTimestamp));
+            }
+
+            @Override
+            public void register() {
+                login();
+            }
+        };
+    }
+}
@@ -1,5 +1,24 @@
 package creation;
 
+import metrics.Log2Histogram;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntSupplier;
+
 /**
  * 建造者模式
  */
@@ -85,12 +104,40 @@ class ResourcePoolConfig3 {
     private int maxTotal;
     private int maxIdle;
     private int minIdle;
+    private long minEvictableIdleMillis;
+    private long maintenanceIntervalMillis;
 
     private ResourcePoolConfig3(Builder builder) {
         this.name = builder.name;
         this.maxTotal = builder.maxTotal;
         this.maxIdle = builder.maxIdle;
         this.minIdle = builder.minIdle;
+        this.minEvictableIdleMillis = builder.minEvictableIdleMillis;
+        this.maintenanceIntervalMillis = builder.maintenanceIntervalMillis;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    public long getMinEvictableIdleMillis() {
+        return minEvictableIdleMillis;
+    }
+
+    public long getMaintenanceIntervalMillis() {
+        return maintenanceIntervalMillis;
     }
 
 
@@ -99,13 +146,30 @@ class ResourcePoolConfig3 {
         private static final int DEFAULT_MAX_TOTAL = 8;
         private static final int DEFAULT_MAX_IDLE  = 8;
         private static final int DEFAULT_MIN_IDLE  = 0;
+        private static final long DEFAULT_MIN_EVICTABLE_IDLE_MILLIS = 30 * 60 * 1000;
+        private static final long DEFAULT_MAINTENANCE_INTERVAL_MILLIS = 0;        // 0表示不启动维护线程
 
         private String name;
         private int maxTotal = DEFAULT_MAX_TOTAL;
         private int maxIdle  = DEFAULT_MAX_IDLE;
         private int minIdle  = DEFAULT_MIN_IDLE;
+        private long minEvictableIdleMillis = DEFAULT_MIN_EVICTABLE_IDLE_MILLIS;
+        private long maintenanceIntervalMillis = DEFAULT_MAINTENANCE_INTERVAL_MILLIS;
 
+        /**
+         * 配置项之间的依赖关系在build()中统一校验
+         */
         public ResourcePoolConfig3 build() {
+            if(name == null || name.isEmpty())
+                throw new IllegalArgumentException("name is required");
+            if(maxTotal <= 0)
+                throw new IllegalArgumentException("maxTotal must be positive");
+            if(maxIdle < 0 || maxIdle > maxTotal)
+                throw new IllegalArgumentException("maxIdle must be between 0 and maxTotal");
+            if(minIdle < 0 || minIdle > maxIdle)
+                throw new IllegalArgumentException("minIdle must be between 0 and maxIdle");
+            if(minEvictableIdleMillis < 0 || maintenanceIntervalMillis < 0)
+                throw new IllegalArgumentException("idle and maintenance intervals must not be negative");
             return new ResourcePoolConfig3(this);
         }
 
@@ -129,9 +193,779 @@ class ResourcePoolConfig3 {
             return this;
         }
 
+        /**
+         * 空闲超过这个时间的资源会被维护线程销毁(保留minIdle个)
+         */
+        public Builder setMinEvictableIdleMillis(long minEvictableIdleMillis) {
+            this.minEvictableIdleMillis = minEvictableIdleMillis;
+            return this;
+        }
+
+        public Builder setMaintenanceIntervalMillis(long maintenanceIntervalMillis) {
+            this.maintenanceIntervalMillis = maintenanceIntervalMillis;
+            return this;
+        }
+
     }
 
     public static void main(String[] args) {
         ResourcePoolConfig3 config = new ResourcePoolConfig3.Builder().setName("db").setMaxTotal(16).build();
     }
-}
\ No newline at end of file
+}
+
+
+/**
+ * 根据ResourcePoolConfig3创建的通用资源池
+ */
+interface ResourceFactory<T> {
+
+    T create() throws Exception;
+
+    /**
+     * 由维护线程对空闲资源调用, 返回false的资源会被销毁
+     */
+    default boolean validate(T resource) {
+        return true;
+    }
+
+    default void destroy(T resource) {}
+}
+
+/**
+ * 池中的资源, 只在资源池内部流转
+ */
+class PooledEntry<T> {
+
+    private final T resource;
+    volatile long lastReturnedNanos = System.nanoTime();
+    long borrowedNanos;
+
+    PooledEntry(T resource) {
+        this.resource = resource;
+    }
+
+    T get() {
+        return resource;
+    }
+}
+
+/**
+ * 一次借出, 用try-with-resources归还
+ * 每次借出都是新的对象, 之前的持有者迟到的close只作用于自己那一次借出, 不会把别人正在用的资源还回去
+ */
+class PooledResource<T> implements AutoCloseable {
+
+    private final ResourcePool<T> pool;
+    private final PooledEntry<T> entry;
+    private final AtomicBoolean returned = new AtomicBoolean();
+
+    PooledResource(ResourcePool<T> pool, PooledEntry<T> entry) {
+        this.pool = pool;
+        this.entry = entry;
+    }
+
+    public T get() {
+        return entry.get();
+    }
+
+    /**
+     * 重复归还会被忽略
+     */
+    @Override
+    public void close() {
+        if(returned.compareAndSet(false, true))
+            pool.release(entry);
+    }
+}
+
+/**
+ * 借出和归还的快速路径只有CAS, 不加锁：
+ *  1. 空闲资源放在ConcurrentLinkedDeque里, 后进先出, 刚归还的资源更可能还在CPU缓存里
+ *  2. 资源总数用CAS控制不超过maxTotal, 空闲数超过maxIdle时直接销毁归还的资源
+ * 资源耗尽时才进入慢速路径, 排进先进先出的等待队列, 用LockSupport挂起(不用synchronized, 不会钉住虚拟线程的载体线程)：
+ *  1. 有人排队时, 归还的资源直接交给队头的等待者, 新来的借出方不能插队, 要排到队尾
+ *  2. 每次借出有自己的截止时间, 超时抛TimeoutException; 等待中被中断抛InterruptedException
+ *  3. 超时或中断的等待者只做标记, 由后面的归还和唤醒顺手清出队列
+ *
+ * 线程亲和：每个线程有一个槽位, 归还时先放进当前线程的槽位, 同一线程再次借出时直接取回,
+ * 不碰共享的空闲队列和计数器; 槽位里的资源仍然可以被其他线程偷走(对槽位CAS, 只有一方能成功),
+ * 借出顺序是 自己的槽位 -> 空闲队列 -> 其他线程的槽位 -> 新建, 所以不会因为资源躲在槽位里而超过maxTotal
+ * 槽位里的资源也算空闲资源, 受maxIdle限制; maxIdle小于maxTotal时要为槽位单独计数, 否则空闲数不可能超限, 省掉计数
+ *
+ * 配置了maintenanceIntervalMillis时, 后台维护线程定期：
+ *  1. 从最久未用的一端开始, 销毁空闲超过minEvictableIdleMillis的资源, 但至少保留minIdle个
+ *  2. 校验剩下的空闲资源, 把校验失败的销毁; 校验在借出路径之外进行
+ *  3. 把空闲资源补足到minIdle
+ * 槽位里超过一个维护周期没被取回的资源(包括已退出线程的槽位)先收回空闲队列, 再按上面的规则处理
+ * 创建资源池时就会预先创建minIdle个资源, 发布后的第一批请求不用承担创建开销
+ */
+class ResourcePool<T> implements AutoCloseable {
+
+    private final ResourcePoolConfig3 config;
+    private final ResourceFactory<T> factory;
+    private final ConcurrentLinkedDeque<PooledEntry<T>> idle = new ConcurrentLinkedDeque<>();
+    private final ConcurrentLinkedQueue<LocalSlot<T>> slots = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<LocalSlot<T>> localSlot = ThreadLocal.withInitial(this::registerSlot);
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger slotted = new AtomicInteger();
+    private final boolean countSlotted;
+    private final AtomicInteger totalCount = new AtomicInteger();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Waiter<T>> waitQueue = new ConcurrentLinkedQueue<>();
+    private final ResourcePoolMetrics metrics =
+            new ResourcePoolMetrics(this::getActiveCount, this::getIdleCount, waiters::get);
+    private final ScheduledExecutorService maintenance;
+    private volatile boolean closed;
+
+    ResourcePool(ResourcePoolConfig3 config, ResourceFactory<T> factory) throws Exception {
+        this.config = config;
+        this.factory = factory;
+        this.countSlotted = config.getMaxIdle() < config.getMaxTotal();
+        ensureMinIdle();
+
+        long interval = config.getMaintenanceIntervalMillis();
+        if(interval > 0) {
+            maintenance = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "resource-pool-maintenance-" + config.getName());
+                thread.setDaemon(true);
+                return thread;
+            });
+            maintenance.scheduleWithFixedDelay(this::runMaintenance, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        else {
+            maintenance = null;
+        }
+    }
+
+    public PooledResource<T> borrow(long timeout, TimeUnit unit) throws Exception {
+        long start = System.nanoTime();
+        if(waiters.get() == 0) {
+            PooledEntry<T> resource = tryBorrow();
+            if(resource != null) {
+                resource.borrowedNanos = start;
+                metrics.recordWait(0);
+                return new PooledResource<>(this, resource);
+            }
+        }
+
+        metrics.recordExhausted();
+        PooledEntry<T> resource;
+        try {
+            resource = await(start + unit.toNanos(timeout));
+        } catch (TimeoutException e) {
+            metrics.recordTimeout();
+            throw e;
+        }
+        resource.borrowedNanos = System.nanoTime();
+        metrics.recordWait(resource.borrowedNanos - start);
+        return new PooledResource<>(this, resource);
+    }
+
+    private PooledEntry<T> await(long deadline) throws Exception {
+        Waiter<T> waiter = new Waiter<>(Thread.currentThread());
+        waiters.incrementAndGet();
+        waitQueue.offer(waiter);
+        try {
+            while(true) {
+                PooledEntry<T> resource = waiter.handed();
+                if(resource != null)
+                    return resource;
+
+                // 入队对归还方可见之后再检查, 归还方放下资源后也会唤醒队头, 不会错过
+                resource = tryBorrow();
+                if(resource != null) {
+                    if(waiter.cancel())
+                        return resource;
+                    giveBack(resource);
+                    continue;
+                }
+
+                long remaining = deadline - System.nanoTime();
+                boolean interrupted = Thread.interrupted();
+                if(remaining <= 0 || interrupted) {
+                    if(!waiter.cancel()) {
+                        // 资源已经交到手上, 保留中断状态, 下一轮取走资源
+                        if(interrupted)
+                            Thread.currentThread().interrupt();
+                        continue;
+                    }
+                    if(interrupted)
+                        throw new InterruptedException();
+                    throw new TimeoutException("pool " + config.getName() + " exhausted");
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        } catch (Exception e) {
+            // 放弃等待时已经交到手上的资源要还回去, 再把唤醒传给下一个等待者
+            if(!waiter.cancel() && waiter.handed() != null)
+                giveBack(waiter.handed());
+            signalWaiter();
+            throw e;
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * 包括线程槽位里的资源
+     */
+    public ResourcePoolMetrics getMetrics() {
+        return metrics;
+    }
+
+    public int getIdleCount() {
+        int count = idleCount.get();
+        for(LocalSlot<T> slot : slots) {
+            if(slot.get() != null)
+                count++;
+        }
+        return count;
+    }
+
+    public int getActiveCount() {
+        return totalCount.get() - getIdleCount();
+    }
+
+    /**
+     * 销毁空闲资源, 借出的资源在归还时销毁
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if(maintenance != null)
+            maintenance.shutdownNow();
+        destroyIdle();
+        for(Waiter<T> waiter : waitQueue)
+            LockSupport.unpark(waiter.thread);
+    }
+
+    private PooledEntry<T> tryBorrow() throws Exception {
+        if(closed)
+            throw new IllegalStateException("pool " + config.getName() + " is closed");
+
+        LocalSlot<T> slot = localSlot.get();
+        PooledEntry<T> resource = slot.get();
+        if(resource != null && takeFromSlot(slot, resource))
+            return resource;
+
+        resource = idle.pollFirst();
+        if(resource != null) {
+            idleCount.decrementAndGet();
+            return resource;
+        }
+
+        resource = steal();
+        if(resource != null)
+            return resource;
+
+        return create();
+    }
+
+    /**
+     * 从其他线程的槽位里偷一个空闲资源, 顺便清理已退出线程的空槽位
+     */
+    private PooledEntry<T> steal() {
+        for(Iterator<LocalSlot<T>> it = slots.iterator(); it.hasNext(); ) {
+            LocalSlot<T> slot = it.next();
+            PooledEntry<T> resource = slot.get();
+            if(resource != null) {
+                if(takeFromSlot(slot, resource))
+                    return resource;
+            }
+            else if(slot.isOwnerGone()) {
+                it.remove();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 只有计数的一方能放进槽位, 放入前先占一个空闲名额, 超过maxIdle就放弃
+     */
+    private boolean reserveSlot() {
+        if(!countSlotted)
+            return true;
+        if(slotted.incrementAndGet() + idleCount.get() <= config.getMaxIdle())
+            return true;
+        slotted.decrementAndGet();
+        return false;
+    }
+
+    private boolean takeFromSlot(LocalSlot<T> slot, PooledEntry<T> resource) {
+        if(!slot.compareAndSet(resource, null))
+            return false;
+        if(countSlotted)
+            slotted.decrementAndGet();
+        return true;
+    }
+
+    private LocalSlot<T> registerSlot() {
+        LocalSlot<T> slot = new LocalSlot<>(Thread.currentThread());
+        slots.offer(slot);
+        return slot;
+    }
+
+    /**
+     * 资源总数已达到maxTotal时返回null
+     */
+    private PooledEntry<T> create() throws Exception {
+        int total;
+        while((total = totalCount.get()) < config.getMaxTotal()) {
+            if(totalCount.compareAndSet(total, total + 1)) {
+                try {
+                    PooledEntry<T> resource = new PooledEntry<>(factory.create());
+                    metrics.recordCreated();
+                    return resource;
+                } catch (Exception e) {
+                    totalCount.decrementAndGet();
+                    signalWaiter();
+                    throw e;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void ensureMinIdle() throws Exception {
+        while(!closed && getIdleCount() < config.getMinIdle()) {
+            PooledEntry<T> resource = create();
+            if(resource == null)
+                return;
+            idleCount.incrementAndGet();
+            idle.offerLast(resource);
+            signalWaiter();
+        }
+    }
+
+    /**
+     * 维护线程调用; 资源要先从空闲队列中摘下来(和借出方竞争, 只有一方能成功)再校验或销毁
+     */
+    void runMaintenance() {
+        long now = System.nanoTime();
+        long minEvictableIdleNanos = TimeUnit.MILLISECONDS.toNanos(config.getMinEvictableIdleMillis());
+        long reclaimNanos = TimeUnit.MILLISECONDS.toNanos(config.getMaintenanceIntervalMillis());
+        try {
+            for(LocalSlot<T> slot : slots) {
+                PooledEntry<T> resource = slot.get();
+                if(resource == null || closed)
+                    continue;
+                boolean stale = slot.isOwnerGone() || now - resource.lastReturnedNanos >= reclaimNanos;
+                if(stale && takeFromSlot(slot, resource))
+                    offerIdle(resource);
+            }
+
+            Iterator<PooledEntry<T>> oldestFirst = idle.descendingIterator();
+            while(oldestFirst.hasNext() && !closed) {
+                PooledEntry<T> resource = oldestFirst.next();
+                boolean expired = now - resource.lastReturnedNanos >= minEvictableIdleNanos
+                        && idleCount.get() > config.getMinIdle();
+                if(!idle.removeLastOccurrence(resource))
+                    continue;
+                idleCount.decrementAndGet();
+                if(expired || !isValid(resource)) {
+                    destroy(resource);
+                    signalWaiter();
+                }
+                else {
+                    idleCount.incrementAndGet();
+                    idle.offerLast(resource);
+                    signalWaiter();
+                }
+            }
+            ensureMinIdle();
+        } catch (Exception e) {
+            // 本轮维护失败不影响资源池使用, 下一轮再试
+        }
+    }
+
+    /**
+     * 使用方归还, 记录占用时长
+     */
+    void release(PooledEntry<T> resource) {
+        long now = System.nanoTime();
+        metrics.recordHold(now - resource.borrowedNanos);
+        resource.lastReturnedNanos = now;
+        giveBack(resource);
+    }
+
+    void giveBack(PooledEntry<T> resource) {
+        if(!closed) {
+            if(handOff(resource))
+                return;
+            LocalSlot<T> slot = localSlot.get();
+            if(slot.get() == null && reserveSlot()) {
+                // 先放入槽位再看等待队列, 和等待方先入队再偷取的顺序配对, 不会错过唤醒
+                slot.set(resource);
+                signalWaiter();
+                if(closed)
+                    destroyIdle();
+                return;
+            }
+        }
+
+        if(closed || idleCount.incrementAndGet() + slotted.get() > config.getMaxIdle()) {
+            if(!closed)
+                idleCount.decrementAndGet();
+            destroy(resource);
+        }
+        else {
+            idle.offerFirst(resource);
+            if(closed)
+                destroyIdle();
+        }
+        signalWaiter();
+    }
+
+    /**
+     * 按先来后到交给第一个还在等的借出方
+     */
+    private boolean handOff(PooledEntry<T> resource) {
+        Waiter<T> waiter;
+        while((waiter = waitQueue.poll()) != null) {
+            if(waiter.offer(resource)) {
+                LockSupport.unpark(waiter.thread);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 从槽位收回的资源放到最久未用的一端, 超过maxIdle时销毁
+     */
+    private void offerIdle(PooledEntry<T> resource) {
+        if(idleCount.incrementAndGet() + slotted.get() > config.getMaxIdle()) {
+            idleCount.decrementAndGet();
+            destroy(resource);
+        }
+        else {
+            idle.offerLast(resource);
+        }
+        signalWaiter();
+    }
+
+    private boolean isValid(PooledEntry<T> resource) {
+        try {
+            return factory.validate(resource.get());
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private void destroyIdle() {
+        PooledEntry<T> resource;
+        while((resource = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            destroy(resource);
+        }
+        for(LocalSlot<T> slot : slots) {
+            if((resource = slot.get()) != null && takeFromSlot(slot, resource))
+                destroy(resource);
+        }
+    }
+
+    /**
+     * 先销毁再减少计数, 保证同一时刻存在的资源不超过maxTotal
+     */
+    private void destroy(PooledEntry<T> resource) {
+        try {
+            factory.destroy(resource.get());
+        } finally {
+            totalCount.decrementAndGet();
+            metrics.recordDestroyed();
+        }
+    }
+
+    /**
+     * 有空闲资源或空出了创建名额时, 唤醒队头还在等的借出方自己去取
+     */
+    private void signalWaiter() {
+        Waiter<T> waiter;
+        while((waiter = waitQueue.peek()) != null) {
+            if(!waiter.isDone()) {
+                LockSupport.unpark(waiter.thread);
+                return;
+            }
+            waitQueue.remove(waiter);
+        }
+    }
+
+    /**
+     * 等待队列节点; 归还方offer和等待方cancel对同一个节点CAS, 只有一方能成功
+     */
+    private static final class Waiter<T> extends AtomicReference<Object> {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final Object CANCELLED = new Object();
+
+        final Thread thread;
+
+        Waiter(Thread thread) {
+            this.thread = thread;
+        }
+
+        boolean offer(PooledEntry<T> resource) {
+            return compareAndSet(null, resource);
+        }
+
+        boolean cancel() {
+            return compareAndSet(null, CANCELLED);
+        }
+
+        boolean isDone() {
+            return get() != null;
+        }
+
+        @SuppressWarnings("unchecked")
+        PooledEntry<T> handed() {
+            Object value = get();
+            return value == null || value == CANCELLED ? null : (PooledEntry<T>) value;
+        }
+    }
+
+    /**
+     * 线程槽位, 最多放一个空闲资源; 只弱引用所属线程, 线程退出后槽位里的资源仍能被偷走或收回
+     */
+    private static final class LocalSlot<T> extends AtomicReference<PooledEntry<T>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final WeakReference<Thread> owner;
+
+        LocalSlot(Thread owner) {
+            this.owner = new WeakReference<>(owner);
+        }
+
+        boolean isOwnerGone() {
+            Thread thread = owner.get();
+            return thread == null || !thread.isAlive();
+        }
+    }
+}
+
+/**
+ * 资源池的运行指标, 用来给maxTotal/maxIdle定大小：
+ *  1. borrowWait: 借出等待时长, 不用等的借出记为0
+ *  2. holdTime: 使用方从借出到归还的占用时长
+ *  3. exhausted/timeouts: 借出时资源耗尽需要排队的次数, 以及最终超时的次数
+ *  4. created/destroyed: 资源创建和销毁次数, 创建速率高说明maxIdle太小或空闲回收太激进
+ *  5. active/idle/waiters: 当前借出数、空闲数、排队数, 读取时才计算
+ * 记录路径只有LongAdder和LongAccumulator, 不加锁也不分配对象
+ */
+class ResourcePoolMetrics {
+
+    private final Log2Histogram borrowWait = new Log2Histogram();
+    private final Log2Histogram holdTime = new Log2Histogram();
+    private final LongAdder exhausted = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder destroyed = new LongAdder();
+    private final IntSupplier active;
+    private final IntSupplier idle;
+    private final IntSupplier waiters;
+    private final long startNanos = System.nanoTime();
+
+    ResourcePoolMetrics(IntSupplier active, IntSupplier idle, IntSupplier waiters) {
+        this.active = active;
+        this.idle = idle;
+        this.waiters = waiters;
+    }
+
+    void recordWait(long nanos) {
+        borrowWait.record(nanos);
+    }
+
+    void recordHold(long nanos) {
+        holdTime.record(nanos);
+    }
+
+    void recordExhausted() {
+        exhausted.increment();
+    }
+
+    void recordTimeout() {
+        timeouts.increment();
+    }
+
+    void recordCreated() {
+        created.increment();
+    }
+
+    void recordDestroyed() {
+        destroyed.increment();
+    }
+
+    public Log2Histogram getBorrowWait() {
+        return borrowWait;
+    }
+
+    public Log2Histogram getHoldTime() {
+        return holdTime;
+    }
+
+    public long getExhaustedCount() {
+        return exhausted.sum();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    public long getCreatedCount() {
+        return created.sum();
+    }
+
+    public long getDestroyedCount() {
+        return destroyed.sum();
+    }
+
+    /**
+     * 资源池创建以来平均每秒创建的资源数
+     */
+    public double getCreationRatePerSecond() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return seconds <= 0 ? 0 : created.sum() / seconds;
+    }
+
+    public int getActive() {
+        return active.getAsInt();
+    }
+
+    public int getIdle() {
+        return idle.getAsInt();
+    }
+
+    public int getWaiters() {
+        return waiters.getAsInt();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("active=%d idle=%d waiters=%d exhausted=%d timeouts=%d created=%d (%.1f/s) destroyed=%d%n"
+                        + "  borrowWait: %s%n  holdTime:   %s",
+                getActive(), getIdle(), getWaiters(), getExhaustedCount(), getTimeoutCount(),
+                getCreatedCount(), getCreationRatePerSecond(), getDestroyedCount(), borrowWait, holdTime);
+    }
+}
+
+/**
+ * 对比：用synchronized保护LinkedList的资源池
+ */
+class SynchronizedResourcePool<T> {
+
+    private final ResourcePoolConfig3 config;
+    private final ResourceFactory<T> factory;
+    private final LinkedList<T> idle = new LinkedList<>();
+    private int totalCount;
+
+    SynchronizedResourcePool(ResourcePoolConfig3 config, ResourceFactory<T> factory) {
+        this.config = config;
+        this.factory = factory;
+    }
+
+    public synchronized T borrow(long timeout, TimeUnit unit) throws Exception {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while(idle.isEmpty() && totalCount >= config.getMaxTotal()) {
+            long remaining = deadline - System.nanoTime();
+            if(remaining <= 0)
+                throw new TimeoutException("pool " + config.getName() + " exhausted");
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        if(!idle.isEmpty())
+            return idle.removeFirst();
+        totalCount++;
+        return factory.create();
+    }
+
+    public synchronized void giveBack(T resource) {
+        if(idle.size() < config.getMaxIdle()) {
+            idle.addFirst(resource);
+        }
+        else {
+            totalCount--;
+            factory.destroy(resource);
+        }
+        notify();
+    }
+}
+
+/**
+ * 压力测试：10万个虚拟线程抢maxTotal为16的资源池, 检查同一时刻借出的资源不超过maxTotal、同一资源不会同时借给两个线程,
+ * 全部归还后空闲资源不超过maxIdle; 分别用maxIdle等于和小于maxTotal跑一遍
+ * 每100个借出方里有一个用很短的超时, 用来覆盖放弃等待的路径
+ * 运行时没有虚拟线程(JDK 21以前)就退回到固定大小的平台线程池
+ */
+class ResourcePoolStress {
+
+    public static void main(String[] args) throws Exception {
+        int tasks = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        run(tasks, 16, 16);
+        run(tasks, 16, 4);
+    }
+
+    private static void run(int tasks, int maxTotal, int maxIdle) throws Exception {
+        AtomicInteger live = new AtomicInteger();
+        AtomicInteger maxLive = new AtomicInteger();
+        ResourceFactory<AtomicBoolean> factory = new ResourceFactory<AtomicBoolean>() {
+            @Override
+            public AtomicBoolean create() {
+                maxLive.accumulateAndGet(live.incrementAndGet(), Math::max);
+                return new AtomicBoolean();
+            }
+
+            @Override
+            public void destroy(AtomicBoolean inUse) {
+                live.decrementAndGet();
+            }
+        };
+        ResourcePoolConfig3 config = new ResourcePoolConfig3.Builder()
+                .setName("stress").setMaxTotal(maxTotal).setMaxIdle(maxIdle).build();
+        ResourcePool<AtomicBoolean> pool = new ResourcePool<>(config, factory);
+
+        AtomicInteger borrowed = new AtomicInteger();
+        AtomicInteger timedOut = new AtomicInteger();
+        AtomicInteger doubleBorrowed = new AtomicInteger();
+        ExecutorService executor = newExecutor();
+        long start = System.nanoTime();
+        for(int i = 0; i < tasks; i++) {
+            long timeoutMillis = i % 100 == 0 ? 1 : 60_000;
+            executor.execute(() -> {
+                try (PooledResource<AtomicBoolean> resource = pool.borrow(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    if(!resource.get().compareAndSet(false, true))
+                        doubleBorrowed.incrementAndGet();
+                    Thread.yield();
+                    resource.get().set(false);
+                    borrowed.incrementAndGet();
+                } catch (TimeoutException e) {
+                    timedOut.incrementAndGet();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.MINUTES);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println(pool.getMetrics());
+        int idleAfterRun = pool.getIdleCount();
+        int liveAfterRun = live.get();
+        pool.close();
+
+        System.out.printf("maxTotal=%d maxIdle=%d tasks=%d borrowed=%d timedOut=%d doubleBorrowed=%d maxLive=%d " +
+                        "idleAfterRun=%d leaked=%d elapsed=%dms%n", maxTotal, maxIdle, tasks, borrowed.get(), timedOut.get(),
+                doubleBorrowed.get(), maxLive.get(), idleAfterRun, live.get(), elapsedMillis);
+        if(borrowed.get() + timedOut.get() != tasks || doubleBorrowed.get() > 0 || maxLive.get() > maxTotal
+                || idleAfterRun > maxIdle || liveAfterRun > maxIdle || live.get() != 0)
+            throw new IllegalStateException("pool invariant violated");
+    }
+
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("virtual threads unavailable, falling back to 1024 platform threads");
+            return Executors.newFixedThreadPool(1024);
+        }
+    }
+}
@@ -1,32 +1,819 @@
 package creation;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
  * 工厂模式分为三种：简单工厂、工厂方法、抽象工厂(不常用)
  * 如果创建逻辑比较复杂, 可以考虑使用工厂模式, 封装对象的创建过程, 将对象的创建和使用相分离
  */
 
-class RuleConfig {}
+/**
+ * 只读的规则配置
+ */
+interface RuleConfigView {
+    String getRule(String section, String name);
+
+    Map<String, String> getSection(String section);
+
+    Set<String> getSectionNames();
+}
+
+/**
+ * 规则配置：按section分组的 name -> value
+ */
+class RuleConfig implements RuleConfigView {
+
+    private final Map<String, Map<String, String>> sections = new LinkedHashMap<>();
+    private boolean frozen;
+
+    public void addRule(String section, String name, String value) {
+        if(frozen)
+            throw new IllegalStateException("rule config is frozen");
+        sections.computeIfAbsent(section, k -> new LinkedHashMap<>()).put(name, value);
+    }
+
+    /**
+     * 冻结之后不能再修改, 安全发布后可以被多个线程并发读取; 被多个调用方共享的配置(如缓存中的)应当先冻结
+     */
+    public RuleConfig freeze() {
+        frozen = true;
+        return this;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    @Override
+    public String getRule(String section, String name) {
+        Map<String, String> rules = getSection(section);
+        return rules == null ? null : rules.get(name);
+    }
+
+    @Override
+    public Map<String, String> getSection(String section) {
+        Map<String, String> rules = sections.get(section);
+        return rules == null ? null : Collections.unmodifiableMap(rules);
+    }
+
+    @Override
+    public Set<String> getSectionNames() {
+        return Collections.unmodifiableSet(sections.keySet());
+    }
+
+    /**
+     * 合并另一个配置, 同一个section下同名的规则以other为准
+     */
+    public void putAll(RuleConfigView other) {
+        for(String section : other.getSectionNames()) {
+            for(Map.Entry<String, String> rule : other.getSection(section).entrySet())
+                addRule(section, rule.getKey(), rule.getValue());
+        }
+    }
+}
 
 interface IRuleConfigParser {
     RuleConfig parse(String configText);
+
+    /**
+     * 归还到池中之前调用, 清除上一次解析留下的状态; 之后parser必须可以被再次使用
+     */
+    default void reset() {}
+
+    /**
+     * 直接从文件解析, 默认读成String再解析; 能流式处理的parser应当覆盖这个方法
+     */
+    default RuleConfig parse(Path path) throws IOException {
+        return parse(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+    }
 }
 
+/**
+ * 流式解析时每解析出一条规则回调一次
+ */
+interface RuleHandler {
+    void onRule(String section, String name, String value);
+}
+
+/**
+ * 直接从UTF-8字节流式解析JSON, 不先解码成整个String, 也不构建中间的JSON树
+ * 顶层每个对象是一个section, 嵌套对象和数组展开成 a.b / a.0 形式的name, 顶层的标量放在名为""的section里
+ * 内部复用解码缓冲区, 实例不是线程安全的
+ */
 class JsonRuleConfigParser implements IRuleConfigParser {
 
+    private final Utf8JsonReader reader;
+
+    JsonRuleConfigParser() {
+        this(new Utf8JsonReader());
+    }
+
+    /**
+     * 和其他parser共用同一个reader, 用于在一次读取中解析多种配置
+     */
+    JsonRuleConfigParser(Utf8JsonReader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * 兼容旧接口
+     */
     @Override
     public RuleConfig parse(String configText) {
-        return new RuleConfig();
+        return parse(ByteBuffer.wrap(configText.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public RuleConfig parse(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    @Override
+    public void reset() {
+        reader.release();
+    }
+
+    /**
+     * 解析完(包括解析失败)就释放对输入的引用, parser会被线程缓存, 不能一直拿着上一次的输入
+     */
+    public RuleConfig parse(ByteBuffer utf8) {
+        RuleConfig config = new RuleConfig();
+        reader.reset(utf8);
+        try {
+            readRules(config);
+            reader.endDocument();
+        } finally {
+            reader.release();
+        }
+        return config;
+    }
+
+    /**
+     * 从reader的当前位置读取一个规则对象
+     */
+    void readRules(RuleConfig config) {
+        reader.beginObject();
+        while(reader.hasNext()) {
+            String name = reader.nextName();
+            if(reader.peek() == '{')
+                readSection(name, config);
+            else
+                reader.readFlattened("", name, config::addRule);
+        }
+        reader.endObject();
+    }
+
+    /**
+     * 只扫描一遍, 记录每个顶层section在输入中的位置, section在第一次访问时才解析
+     * 文件内容先复制到堆内再建索引, 不保留文件映射, 之后文件被原地改写也不会读到错位的内容
+     */
+    public LazyRuleConfig parseLazy(Path path) throws IOException {
+        return parseLazy(ByteBuffer.wrap(Files.readAllBytes(path)));
+    }
+
+    /**
+     * 返回的配置会一直引用utf8, 调用方之后不能再修改它的内容
+     */
+    public LazyRuleConfig parseLazy(ByteBuffer utf8) {
+        RuleConfig topLevel = new RuleConfig();
+        Map<String, List<int[]>> index = new LinkedHashMap<>();
+        reader.reset(utf8);
+        reader.beginObject();
+        while(reader.hasNext()) {
+            String name = reader.nextName();
+            if(reader.peek() == '{') {
+                int start = reader.position();
+                reader.skipValue();
+                index.computeIfAbsent(name, k -> new ArrayList<>()).add(new int[] {start, reader.position()});
+            }
+            else {
+                reader.readFlattened("", name, topLevel::addRule);
+            }
+        }
+        reader.endObject();
+        reader.endDocument();
+        reader.release();
+        return new LazyRuleConfig(utf8, index, topLevel.getSection(""));
+    }
+
+    /**
+     * 解析输入中[start, end)范围内的一个section对象
+     */
+    void parseSection(ByteBuffer utf8, int start, int end, String section, RuleConfig config) {
+        ByteBuffer slice = utf8.duplicate();
+        slice.limit(end).position(start);
+        reader.reset(slice);
+        readSection(section, config);
+        reader.endDocument();
+        reader.release();
+    }
+
+    private void readSection(String section, RuleConfig config) {
+        reader.beginObject();
+        while(reader.hasNext())
+            reader.readFlattened(section, reader.nextName(), config::addRule);
+        reader.endObject();
+    }
+
+    /**
+     * 解析一个随机生成的大文件, 统计每MB输入分配的字节数, 并对比全量解析和按需解析到第一次查询的耗时
+     * 用法: java creation.JsonRuleConfigParser [sizeInMB]
+     */
+    public static void main(String[] args) throws IOException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        Path file = Files.createTempFile("rules", ".json");
+        try {
+            StringBuilder json = new StringBuilder("{");
+            for(int section = 0; json.length() < megabytes << 20; section++) {
+                json.append(section == 0 ? "" : ",").append("\"section").append(section).append("\":{");
+                for(int rule = 0; rule < 100; rule++) {
+                    json.append(rule == 0 ? "" : ",").append("\"rule").append(rule).append("\":")
+                            .append(rule % 2 == 0 ? "\"value-" + section + "-" + rule + "\"" : String.valueOf(rule));
+                }
+                json.append('}');
+            }
+            json.append('}');
+            Files.write(file, json.toString().getBytes(StandardCharsets.UTF_8));
+            double inputMegabytes = Files.size(file) / (double) (1 << 20);
+
+            JsonRuleConfigParser parser = new JsonRuleConfigParser();
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long threadId = Thread.currentThread().getId();
+            for(int round = 0; round < 5; round++) {
+                long before = threads.getThreadAllocatedBytes(threadId);
+                long start = System.nanoTime();
+                parser.parse(file);
+                long streaming = threads.getThreadAllocatedBytes(threadId) - before;
+                long streamingNanos = System.nanoTime() - start;
+
+                before = threads.getThreadAllocatedBytes(threadId);
+                start = System.nanoTime();
+                parser.parse(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+                long viaString = threads.getThreadAllocatedBytes(threadId) - before;
+                long viaStringNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                parser.parse(file).getRule("section1", "rule1");
+                long eagerLookupNanos = System.nanoTime() - start;
+                start = System.nanoTime();
+                parser.parseLazy(file).getRule("section1", "rule1");
+                long lazyLookupNanos = System.nanoTime() - start;
+
+                System.out.printf("mapped: %.0f KB/MB %.1f MB/s   parse(String): %.0f KB/MB %.1f MB/s   " +
+                                "first lookup: eager %.1f ms, lazy %.1f ms%n",
+                        streaming / inputMegabytes / 1024, inputMegabytes / (streamingNanos / 1e9),
+                        viaString / inputMegabytes / 1024, inputMegabytes / (viaStringNanos / 1e9),
+                        eagerLookupNanos / 1e6, lazyLookupNanos / 1e6);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
+
+/**
+ * 按需解析的规则配置：构造时只有section位置的索引, 每个section第一次被访问时才解析并缓存
+ * 多个线程同时访问同一个section时只会解析一次; 只实现只读接口, 需要修改时用RuleConfig.putAll复制一份
+ */
+class LazyRuleConfig implements RuleConfigView {
+
+    private final ByteBuffer utf8;
+    private final Map<String, List<int[]>> index;
+    private final Map<String, String> topLevel;
+    private final ConcurrentHashMap<String, Map<String, String>> parsed = new ConcurrentHashMap<>();
+
+    LazyRuleConfig(ByteBuffer utf8, Map<String, List<int[]>> index, Map<String, String> topLevel) {
+        this.utf8 = utf8;
+        this.index = index;
+        this.topLevel = topLevel;
+    }
+
+    @Override
+    public String getRule(String section, String name) {
+        Map<String, String> rules = getSection(section);
+        return rules == null ? null : rules.get(name);
+    }
+
+    @Override
+    public Map<String, String> getSection(String section) {
+        Map<String, String> rules = parsed.get(section);
+        if(rules != null)
+            return rules;
+        List<int[]> ranges = index.get(section);
+        if(ranges == null)
+            return section.isEmpty() ? topLevel : null;
+        return parsed.computeIfAbsent(section, name -> {
+            RuleConfig config = new RuleConfig();
+            JsonRuleConfigParser parser = new JsonRuleConfigParser();
+            for(int[] range : ranges)
+                parser.parseSection(utf8, range[0], range[1], name, config);
+            Map<String, String> sectionRules = config.getSection(name);
+            return sectionRules == null ? Collections.emptyMap() : sectionRules;
+        });
+    }
+
+    @Override
+    public Set<String> getSectionNames() {
+        if(topLevel == null)
+            return Collections.unmodifiableSet(index.keySet());
+        Set<String> names = new LinkedHashSet<>();
+        names.add("");
+        names.addAll(index.keySet());
+        return Collections.unmodifiableSet(names);
+    }
+}
+
+/**
+ * 基于ByteBuffer的拉取式JSON读取器, 按需读取name和标量值, 跳过的值不产生任何对象
+ * 只有最终需要的name和value会被解码成String
+ */
+class Utf8JsonReader {
+
+    private static final int INITIAL_SCRATCH_SIZE = 256;
+    private static final int MAX_RETAINED_SCRATCH_SIZE = 64 * 1024;
+
+    private ByteBuffer buffer;
+    private int position;
+    private int limit;
+    private boolean needComma;
+    private byte[] scratch = new byte[INITIAL_SCRATCH_SIZE];
+
+    void reset(ByteBuffer utf8) {
+        this.buffer = utf8;
+        this.position = utf8.position();
+        this.limit = utf8.limit();
+        this.needComma = false;
+    }
+
+    /**
+     * 释放对输入的引用(映射的文件在没有引用之后才能被回收), 过大的scratch也不再保留
+     */
+    void release() {
+        buffer = null;
+        position = limit = 0;
+        if(scratch.length > MAX_RETAINED_SCRATCH_SIZE)
+            scratch = new byte[INITIAL_SCRATCH_SIZE];
+    }
+
+    int position() {
+        return position;
+    }
+
+    /**
+     * 返回下一个值的第一个字符, 不消费
+     */
+    char peek() {
+        skipWhitespace();
+        if(position >= limit)
+            throw error("unexpected end of input");
+        return (char) buffer.get(position);
+    }
+
+    void beginObject() {
+        expect('{');
+        needComma = false;
+    }
+
+    void endObject() {
+        expect('}');
+        needComma = true;
+    }
+
+    void beginArray() {
+        expect('[');
+        needComma = false;
+    }
+
+    void endArray() {
+        expect(']');
+        needComma = true;
+    }
+
+    void endDocument() {
+        skipWhitespace();
+        if(position != limit)
+            throw error("trailing content");
+    }
+
+    /**
+     * 当前对象或数组是否还有元素, 会消费元素之间的逗号
+     */
+    boolean hasNext() {
+        char next = peek();
+        if(next == '}' || next == ']')
+            return false;
+        if(needComma) {
+            expect(',');
+            needComma = false;
+        }
+        return true;
+    }
+
+    String nextName() {
+        skipWhitespace();
+        String name = readString();
+        expect(':');
+        needComma = false;
+        return name;
+    }
+
+    /**
+     * 字符串、数字和布尔值都以字符串返回, null返回null
+     */
+    String nextScalar() {
+        char next = peek();
+        String value;
+        if(next == '"') {
+            value = readString();
+        }
+        else if(next == 'n') {
+            expectLiteral("null");
+            value = null;
+        }
+        else if(next == 't') {
+            expectLiteral("true");
+            value = "true";
+        }
+        else if(next == 'f') {
+            expectLiteral("false");
+            value = "false";
+        }
+        else if(next == '-' || (next >= '0' && next <= '9')) {
+            int start = position;
+            while(position < limit && isNumberChar(buffer.get(position)))
+                position++;
+            value = decode(start, position - start);
+        }
+        else {
+            throw error("unexpected character '" + next + "'");
+        }
+        needComma = true;
+        return value;
+    }
+
+    /**
+     * 读取下一个值, 嵌套的对象和数组展开成 name.key / name.0 形式, 每个标量回调一次
+     */
+    void readFlattened(String section, String name, RuleHandler handler) {
+        char next = peek();
+        if(next == '{') {
+            beginObject();
+            while(hasNext())
+                readFlattened(section, name + "." + nextName(), handler);
+            endObject();
+        }
+        else if(next == '[') {
+            beginArray();
+            for(int i = 0; hasNext(); i++)
+                readFlattened(section, name + "." + i, handler);
+            endArray();
+        }
+        else {
+            handler.onRule(section, name, nextScalar());
+        }
+    }
+
+    /**
+     * 跳过下一个值(包括嵌套的对象和数组)
+     */
+    void skipValue() {
+        char next = peek();
+        if(next == '{' || next == '[') {
+            int depth = 0;
+            do {
+                byte b = buffer.get(position);
+                if(b == '"') {
+                    skipString();
+                    continue;
+                }
+                if(b == '{' || b == '[')
+                    depth++;
+                else if(b == '}' || b == ']')
+                    depth--;
+                position++;
+            } while(depth > 0 && position < limit);
+            if(depth > 0)
+                throw error("unexpected end of input");
+            needComma = true;
+        }
+        else if(next == '"') {
+            skipString();
+            needComma = true;
+        }
+        else {
+            nextScalar();
+        }
+    }
+
+    private String readString() {
+        if(position >= limit || buffer.get(position) != '"')
+            throw error("expected string");
+        int start = ++position;
+        while(position < limit) {
+            byte b = buffer.get(position);
+            if(b == '"') {
+                String value = decode(start, position - start);
+                position++;
+                return value;
+            }
+            if(b == '\\')
+                return readEscapedString(start);
+            position++;
+        }
+        throw error("unterminated string");
+    }
+
+    /**
+     * 遇到转义字符时才把内容复制到scratch里处理
+     */
+    private String readEscapedString(int start) {
+        int length = 0;
+        for(int i = start; i < position; i++)
+            length = put(length, buffer.get(i));
+
+        while(position < limit) {
+            byte b = buffer.get(position++);
+            if(b == '"')
+                return new String(scratch, 0, length, StandardCharsets.UTF_8);
+            if(b != '\\') {
+                length = put(length, b);
+                continue;
+            }
+            if(position >= limit)
+                break;
+            byte escaped = buffer.get(position++);
+            switch(escaped) {
+                case '"': case '\\': case '/': length = put(length, escaped); break;
+                case 'b': length = put(length, (byte) '\b'); break;
+                case 'f': length = put(length, (byte) '\f'); break;
+                case 'n': length = put(length, (byte) '\n'); break;
+                case 'r': length = put(length, (byte) '\r'); break;
+                case 't': length = put(length, (byte) '\t'); break;
+                case 'u': length = putCodePoint(length, readUnicodeEscape()); break;
+                default: throw error("invalid escape '\\" + (char) escaped + "'");
+            }
+        }
+        throw error("unterminated string");
+    }
+
+    private int readUnicodeEscape() {
+        int c = readHex4();
+        if(Character.isHighSurrogate((char) c) && position + 6 <= limit
+                && buffer.get(position) == '\\' && buffer.get(position + 1) == 'u') {
+            int mark = position;
+            position += 2;
+            int low = readHex4();
+            if(Character.isLowSurrogate((char) low))
+                return Character.toCodePoint((char) c, (char) low);
+            position = mark;
+        }
+        return Character.isSurrogate((char) c) ? '?' : c;
+    }
+
+    private int readHex4() {
+        if(position + 4 > limit)
+            throw error("invalid unicode escape");
+        int value = 0;
+        for(int i = 0; i < 4; i++) {
+            int digit = Character.digit(buffer.get(position++), 16);
+            if(digit < 0)
+                throw error("invalid unicode escape");
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private int putCodePoint(int length, int codePoint) {
+        if(codePoint < 0x80)
+            return put(length, (byte) codePoint);
+        if(codePoint < 0x800) {
+            length = put(length, (byte) (0xC0 | codePoint >> 6));
+            return put(length, (byte) (0x80 | codePoint & 0x3F));
+        }
+        if(codePoint < 0x10000) {
+            length = put(length, (byte) (0xE0 | codePoint >> 12));
+            length = put(length, (byte) (0x80 | codePoint >> 6 & 0x3F));
+            return put(length, (byte) (0x80 | codePoint & 0x3F));
+        }
+        length = put(length, (byte) (0xF0 | codePoint >> 18));
+        length = put(length, (byte) (0x80 | codePoint >> 12 & 0x3F));
+        length = put(length, (byte) (0x80 | codePoint >> 6 & 0x3F));
+        return put(length, (byte) (0x80 | codePoint & 0x3F));
+    }
+
+    private int put(int length, byte b) {
+        if(length == scratch.length)
+            scratch = Arrays.copyOf(scratch, length * 2);
+        scratch[length] = b;
+        return length + 1;
+    }
+
+    private void skipString() {
+        position++;
+        while(position < limit) {
+            byte b = buffer.get(position++);
+            if(b == '\\')
+                position++;
+            else if(b == '"')
+                return;
+        }
+        throw error("unterminated string");
+    }
+
+    /**
+     * 堆内缓冲区直接从底层数组解码, 映射文件等直接缓冲区先复制到scratch
+     */
+    private String decode(int start, int length) {
+        if(buffer.hasArray())
+            return new String(buffer.array(), buffer.arrayOffset() + start, length, StandardCharsets.UTF_8);
+        if(scratch.length < length)
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        buffer.get(start, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void expect(char c) {
+        skipWhitespace();
+        if(position >= limit || buffer.get(position) != c)
+            throw error("expected '" + c + "'");
+        position++;
+    }
+
+    private void expectLiteral(String literal) {
+        for(int i = 0; i < literal.length(); i++) {
+            if(position >= limit || buffer.get(position++) != literal.charAt(i))
+                throw error("expected " + literal);
+        }
+    }
+
+    private void skipWhitespace() {
+        while(position < limit) {
+            byte b = buffer.get(position);
+            if(b != ' ' && b != '\n' && b != '\r' && b != '\t')
+                return;
+            position++;
+        }
+    }
+
+    private static boolean isNumberChar(byte b) {
+        return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("malformed json at offset " + position + ": " + message);
     }
 }
 
+/**
+ * 基于StAX的流式XML解析, 一次只处理一个元素, 内存占用只取决于最大的一条规则
+ * <rules>
+ *     <section name="db">
+ *         <rule name="url">jdbc:mysql://...</rule>
+ *     </section>
+ *     <rule name="timeout">30</rule>        不在section中的规则放在名为""的section里
+ * </rules>
+ * 解析状态都在每次调用的局部变量里, 配置好的XMLInputFactory是线程安全的, 所以实例可以被多个线程共享
+ */
 class XmlRuleConfigParser implements IRuleConfigParser {
 
+    private final XMLInputFactory inputFactory = XMLInputFactory.newFactory();
+
+    XmlRuleConfigParser() {
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
     @Override
     public RuleConfig parse(String configText) {
-        return new RuleConfig();
+        RuleConfig config = new RuleConfig();
+        try {
+            parse(inputFactory.createXMLStreamReader(new StringReader(configText)), config::addRule);
+        } catch (XMLStreamException e) {
+            throw malformed(e);
+        }
+        return config;
+    }
+
+    @Override
+    public RuleConfig parse(Path path) throws IOException {
+        RuleConfig config = new RuleConfig();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            parse(in, config::addRule);
+        }
+        return config;
+    }
+
+    /**
+     * 不构建RuleConfig, 每解析出一条规则就交给handler
+     */
+    public void parse(InputStream in, RuleHandler handler) {
+        try {
+            parse(inputFactory.createXMLStreamReader(in), handler);
+        } catch (XMLStreamException e) {
+            throw malformed(e);
+        }
+    }
+
+    private void parse(XMLStreamReader reader, RuleHandler handler) throws XMLStreamException {
+        try {
+            StringBuilder text = new StringBuilder();
+            String section = "";
+            String rule = null;
+            while(reader.hasNext()) {
+                switch(reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        if(rule != null)
+                            throw new XMLStreamException("unexpected element in rule " + rule, reader.getLocation());
+                        if("section".equals(reader.getLocalName())) {
+                            section = requiredName(reader);
+                        }
+                        else if("rule".equals(reader.getLocalName())) {
+                            rule = requiredName(reader);
+                            text.setLength(0);
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        if(rule != null)
+                            text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if("rule".equals(reader.getLocalName())) {
+                            handler.onRule(section, rule, text.toString());
+                            rule = null;
+                        }
+                        else if("section".equals(reader.getLocalName())) {
+                            section = "";
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String requiredName(XMLStreamReader reader) throws XMLStreamException {
+        String name = reader.getAttributeValue(null, "name");
+        if(name == null)
+            throw new XMLStreamException("<" + reader.getLocalName() + "> requires a name attribute", reader.getLocation());
+        return name;
+    }
+
+    private static IllegalArgumentException malformed(XMLStreamException e) {
+        return new IllegalArgumentException("malformed xml: " + e.getMessage(), e);
     }
 }
 
@@ -72,7 +859,7 @@ class RuleConfigSource1 {
             throw new Exception("error config file format");
         }
 
-        return parser.parse("...");
+        return parser.parse("{}");
     }
 
     private String getFileExtension(String filePath) {
@@ -93,7 +880,7 @@ class RuleConfigSource2 {
         if(parser == null)
             throw new Exception("error config file format");
 
-        return parser.parse("...");
+        return parser.parse("{}");
     }
 
 
@@ -135,7 +922,7 @@ class RuleConfigSource3 {
         if(parser == null)
             throw new Exception("error config file format");
 
-        return parser.parse("...");
+        return parser.parse("{}");
     }
 
 
@@ -145,21 +932,25 @@ class RuleConfigSource3 {
     }
 }
 
+/**
+ * parser内部复用解码缓冲区, 不是线程安全的, 所以按线程缓存, 每个线程拿到的是自己的实例
+ */
 class RuleConfigParserFactory {
-    private static final Map<String,IRuleConfigParser> cachedParsers = new HashMap<>();
+    private static final Map<String, ThreadLocal<IRuleConfigParser>> cachedParsers = new HashMap<>();
 
     static {
-        cachedParsers.put("json", new JsonRuleConfigParser());
-        cachedParsers.put("xml", new XmlRuleConfigParser());
-        cachedParsers.put("yaml", new YamlRuleConfigParser());
-        cachedParsers.put("properties", new PropertiesRuleConfigParser());
+        cachedParsers.put("json", ThreadLocal.withInitial(JsonRuleConfigParser::new));
+        cachedParsers.put("xml", ThreadLocal.withInitial(XmlRuleConfigParser::new));
+        cachedParsers.put("yaml", ThreadLocal.withInitial(YamlRuleConfigParser::new));
+        cachedParsers.put("properties", ThreadLocal.withInitial(PropertiesRuleConfigParser::new));
     }
 
     public static IRuleConfigParser createParser(String configFormat) {
         if(configFormat == null || configFormat.isEmpty()) {
             return null;
         }
-        return cachedParsers.get(configFormat.toLowerCase());
+        ThreadLocal<IRuleConfigParser> parser = cachedParsers.get(configFormat.toLowerCase());
+        return parser == null ? null : parser.get();
     }
 }
 
@@ -169,9 +960,57 @@ class RuleConfigParserFactory {
  */
 interface IRuleConfigParserFactory {
    IRuleConfigParser createParser();
+
+   /**
+    * 从池中借出一个parser, 配合try-with-resources使用, close()时归还
+    */
+   RuleConfigParserLease borrowParser();
 }
 
-class JsonRuleConfigParserFactory implements IRuleConfigParserFactory {
+/**
+ * 借出的parser, close()时先reset()再还回去
+ */
+class RuleConfigParserLease implements AutoCloseable {
+
+    private final IRuleConfigParser parser;
+    boolean inUse;
+
+    RuleConfigParserLease(IRuleConfigParser parser) {
+        this.parser = parser;
+    }
+
+    public IRuleConfigParser parser() {
+        return parser;
+    }
+
+    @Override
+    public void close() {
+        parser.reset();
+        inUse = false;
+    }
+}
+
+/**
+ * 真实的parser内部有较大的缓冲区, 每次load都新建会带来GC压力
+ * 这里每个线程缓存一个parser和它的lease, 预热之后借出和归还都不再分配对象
+ * 同一个线程嵌套借用时, 缓存的那个已被占用, 就临时新建一个不缓存的
+ */
+abstract class PooledRuleConfigParserFactory implements IRuleConfigParserFactory {
+
+    private final ThreadLocal<RuleConfigParserLease> cached =
+            ThreadLocal.withInitial(() -> new RuleConfigParserLease(createParser()));
+
+    @Override
+    public RuleConfigParserLease borrowParser() {
+        RuleConfigParserLease lease = cached.get();
+        if(lease.inUse)
+            lease = new RuleConfigParserLease(createParser());
+        lease.inUse = true;
+        return lease;
+    }
+}
+
+class JsonRuleConfigParserFactory extends PooledRuleConfigParserFactory {
 
     @Override
     public IRuleConfigParser createParser() {
@@ -179,7 +1018,7 @@ class JsonRuleConfigParserFactory implements IRuleConfigParserFactory {
     }
 }
 
-class XmlRuleConfigParserFactory implements IRuleConfigParserFactory {
+class XmlRuleConfigParserFactory extends PooledRuleConfigParserFactory {
 
     @Override
     public IRuleConfigParser createParser() {
@@ -187,7 +1026,7 @@ class XmlRuleConfigParserFactory implements IRuleConfigParserFactory {
     }
 }
 
-class YamlRuleConfigParserFactory implements IRuleConfigParserFactory {
+class YamlRuleConfigParserFactory extends PooledRuleConfigParserFactory {
 
     @Override
     public IRuleConfigParser createParser() {
@@ -195,7 +1034,7 @@ class YamlRuleConfigParserFactory implements IRuleConfigParserFactory {
     }
 }
 
-class PropertiesRuleConfigParserFactory implements IRuleConfigParserFactory {
+class PropertiesRuleConfigParserFactory extends PooledRuleConfigParserFactory {
 
     @Override
     public IRuleConfigParser createParser() {
@@ -211,7 +1050,9 @@ class RuleConfigSource4 {
         if(parserFactory == null) {
             throw new Exception("error config file format");
         }
-        return parserFactory.createParser().parse("...");
+        try (RuleConfigParserLease lease = parserFactory.borrowParser()) {
+            return lease.parser().parse("{}");
+        }
     }
 
 
@@ -243,6 +1084,527 @@ class RuleConfigParserFactoryMap {
 }
 
 
+/**
+ * 配置文件很少变化, 而load()调用非常频繁, 可以在工厂方法的基础上加一层缓存：
+ *  以规范化路径为key, 文件的修改时间和大小没变就直接返回上次解析的结果
+ */
+class RuleConfigSource5 {
+
+    private static final int MAX_CACHED_FILES = 256;
+    private static final ForkJoinPool loaderPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private final RuleConfigCache<RuleConfig> cache = new RuleConfigCache<>(MAX_CACHED_FILES);
+    private final RuleConfigCache<LazyRuleConfig> lazyCache = new RuleConfigCache<>(MAX_CACHED_FILES);
+    // 批量加载单独缓存, 容量跟着文件集合走, 不会把load()的热点挤出去, 重复加载同一批文件也不用重新解析
+    private final RuleConfigCache<RuleConfig> bulkCache = new RuleConfigCache<>(MAX_CACHED_FILES);
+
+    public RuleConfig load(String ruleConfigFilePath) throws Exception {
+        return load(Paths.get(ruleConfigFilePath));
+    }
+
+    RuleConfig load(Path ruleConfigFilePath) throws Exception {
+        return cache.get(ruleConfigFilePath, this::parse);
+    }
+
+    /**
+     * 按需解析：json文件只建立section索引, 用到哪个section才解析哪个; 其他格式退化为load()
+     */
+    public RuleConfigView loadLazy(String ruleConfigFilePath) throws Exception {
+        Path path = Paths.get(ruleConfigFilePath);
+        if(!"json".equals(getFileExtension(path)))
+            return load(path);
+        return lazyCache.get(path, p -> new JsonRuleConfigParser().parseLazy(p));
+    }
+
+    /**
+     * 并行解析多个配置文件并合并成一个RuleConfig
+     * 文件按路径排序后依次合并, 同名规则以排在后面的文件为准; 有文件加载失败时抛出排序最靠前的那个异常
+     */
+    public RuleConfig loadAll(Collection<Path> ruleConfigFilePaths) throws Exception {
+        return loadAll(sortedPaths(ruleConfigFilePaths));
+    }
+
+    /**
+     * 带快照的批量加载：源文件的内容哈希和快照中记录的一致时直接读取快照, 完全跳过文本解析
+     * 否则重新解析并写出新的快照供下次启动使用; 快照只是缓存, 写不出来(目录只读、磁盘满)不影响本次加载
+     */
+    public RuleConfig loadAll(Collection<Path> ruleConfigFilePaths, Path snapshotFile) throws Exception {
+        Path[] paths = sortedPaths(ruleConfigFilePaths);
+        RuleConfigSnapshot.Fingerprint sources = RuleConfigSnapshot.fingerprint(paths);
+        RuleConfig config = RuleConfigSnapshot.read(snapshotFile, sources);
+        if(config == null) {
+            config = loadAll(paths);
+            try {
+                RuleConfigSnapshot.write(snapshotFile, sources, config);
+            } catch (IOException e) {
+                // 下次启动时快照不匹配, 会再次回退到文本解析
+            }
+        }
+        return config;
+    }
+
+    private static Path[] sortedPaths(Collection<Path> ruleConfigFilePaths) {
+        return ruleConfigFilePaths.stream()
+                .map(path -> path.toAbsolutePath().normalize())
+                .sorted()
+                .toArray(Path[]::new);
+    }
+
+    private RuleConfig loadAll(Path[] paths) throws Exception {
+        RuleConfig[] configs = new RuleConfig[paths.length];
+        Exception[] failures = new Exception[paths.length];
+        bulkCache.ensureCapacity(paths.length);
+        loaderPool.invoke(new LoadTask(paths, configs, failures, 0, paths.length));
+
+        RuleConfig merged = new RuleConfig();
+        for(int i = 0; i < paths.length; i++) {
+            if(failures[i] != null)
+                throw failures[i];
+            merged.putAll(configs[i]);
+        }
+        return merged;
+    }
+
+    /**
+     * 监听模式：文件变化后只重新解析变化的文件, 通过RuleConfigWatcher.current()读取最新配置
+     */
+    public RuleConfigWatcher watch(Collection<Path> ruleConfigFilePaths, long debounceMillis) throws Exception {
+        return new RuleConfigWatcher(this, ruleConfigFilePaths, debounceMillis);
+    }
+
+    private class LoadTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path[] paths;
+        private final RuleConfig[] configs;
+        private final Exception[] failures;
+        private final int from;
+        private final int to;
+
+        LoadTask(Path[] paths, RuleConfig[] configs, Exception[] failures, int from, int to) {
+            this.paths = paths;
+            this.configs = configs;
+            this.failures = failures;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new LoadTask(paths, configs, failures, from, middle),
+                        new LoadTask(paths, configs, failures, middle, to));
+                return;
+            }
+            if(to > from) {
+                try {
+                    configs[from] = bulkCache.get(paths[from], RuleConfigSource5.this::parse);
+                } catch (Exception e) {
+                    failures[from] = e;
+                }
+            }
+        }
+    }
+
+    RuleConfig parse(Path path) throws Exception {
+        IRuleConfigParserFactory parserFactory = RuleConfigParserFactoryMap.getParserFactory(getFileExtension(path));
+        if(parserFactory == null) {
+            throw new Exception("error config file format");
+        }
+        try (RuleConfigParserLease lease = parserFactory.borrowParser()) {
+            return lease.parser().parse(path);
+        }
+    }
+
+    private String getFileExtension(Path path) {
+        String fileName = path.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 ? "" : fileName.substring(dot + 1).toLowerCase();
+    }
+}
+
+/**
+ * RuleConfig的二进制快照, 所有整数为大端序, 字符串为 [int 字节数][UTF-8], null字符串的字节数为-1
+ *  int MAGIC, int VERSION
+ *  int 源文件数, 每个源文件: 路径, long 大小, long CRC32C
+ *  int section数, 每个section: 名称, int 规则数, 每条规则: name, value
+ *  int 以上所有内容的CRC32C
+ * 读取时映射整个文件, 任何不一致(源文件变化、版本不同、文件损坏)都返回null, 由调用方回退到文本解析
+ */
+class RuleConfigSnapshot {
+
+    private static final int MAGIC = 0x52434653;      // "RCFS"
+    private static final int VERSION = 1;
+
+    /**
+     * 一组源文件在某一时刻的大小和内容哈希, 应当在解析之前计算, 避免解析期间文件被修改
+     */
+    static class Fingerprint {
+        final Path[] paths;
+        final long[] sizes;
+        final long[] hashes;
+
+        Fingerprint(Path[] paths, long[] sizes, long[] hashes) {
+            this.paths = paths;
+            this.sizes = sizes;
+            this.hashes = hashes;
+        }
+    }
+
+    static Fingerprint fingerprint(Path[] paths) throws IOException {
+        long[] sizes = new long[paths.length];
+        long[] hashes = new long[paths.length];
+        CRC32C crc = new CRC32C();
+        for(int i = 0; i < paths.length; i++) {
+            try (FileChannel channel = FileChannel.open(paths[i], StandardOpenOption.READ)) {
+                sizes[i] = channel.size();
+                crc.reset();
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, sizes[i]));
+                hashes[i] = crc.getValue();
+            }
+        }
+        return new Fingerprint(paths, sizes, hashes);
+    }
+
+    /**
+     * 先写临时文件再原子替换, 进程在写到一半时崩溃也不会留下损坏的快照
+     */
+    static void write(Path snapshotFile, Fingerprint sources, RuleConfig config) throws IOException {
+        Path temp = Files.createTempFile(snapshotFile.toAbsolutePath().getParent(), snapshotFile.getFileName().toString(), ".tmp");
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)), new CRC32C());
+            try (DataOutputStream out = new DataOutputStream(checked)) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(sources.paths.length);
+                for(int i = 0; i < sources.paths.length; i++) {
+                    writeString(out, sources.paths[i].toString());
+                    out.writeLong(sources.sizes[i]);
+                    out.writeLong(sources.hashes[i]);
+                }
+                Set<String> sections = config.getSectionNames();
+                out.writeInt(sections.size());
+                for(String section : sections) {
+                    Map<String, String> rules = config.getSection(section);
+                    writeString(out, section);
+                    out.writeInt(rules.size());
+                    for(Map.Entry<String, String> rule : rules.entrySet()) {
+                        writeString(out, rule.getKey());
+                        writeString(out, rule.getValue());
+                    }
+                }
+                out.flush();
+                out.writeInt((int) checked.getChecksum().getValue());
+            }
+            Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    static RuleConfig read(Path snapshotFile, Fingerprint expected) {
+        if(!Files.isRegularFile(snapshotFile))
+            return null;
+        try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if(buffer.limit() < 16 || !checksumMatches(buffer))
+                return null;
+            if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                return null;
+
+            int sourceCount = buffer.getInt();
+            if(sourceCount != expected.paths.length)
+                return null;
+            byte[] scratch = new byte[256];
+            for(int i = 0; i < sourceCount; i++) {
+                String path = readString(buffer, scratch);
+                if(!expected.paths[i].toString().equals(path)
+                        || buffer.getLong() != expected.sizes[i] || buffer.getLong() != expected.hashes[i])
+                    return null;
+            }
+
+            RuleConfig config = new RuleConfig();
+            int sectionCount = buffer.getInt();
+            for(int i = 0; i < sectionCount; i++) {
+                String section = readString(buffer, scratch);
+                int ruleCount = buffer.getInt();
+                for(int j = 0; j < ruleCount; j++)
+                    config.addRule(section, readString(buffer, scratch), readString(buffer, scratch));
+            }
+            return config;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static boolean checksumMatches(ByteBuffer buffer) {
+        int end = buffer.limit() - 4;
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate().limit(end));
+        return (int) crc.getValue() == buffer.getInt(end);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if(value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer, byte[] scratch) {
+        int length = buffer.getInt();
+        if(length < 0)
+            return null;
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
+
+/**
+ * 配置热加载
+ *  1. 用WatchService监听配置文件所在的目录, 一批事件之后安静debounceMillis才开始处理, 合并编辑器的连续写入
+ *  2. 只重新解析发生变化的文件, 再和其他文件上次的解析结果按loadAll()的规则合并
+ *  3. 新配置完整构建好并冻结之后通过AtomicReference整体替换, 读取方不加锁, 也不会看到构建到一半的配置
+ * 某个文件解析失败时保留它上一次的结果, 失败原因可以通过getLastFailure()查看
+ */
+class RuleConfigWatcher implements Closeable {
+
+    private final RuleConfigSource5 source;
+    private final Set<Path> paths = new TreeSet<>();
+    private final Map<Path, RuleConfig> parsed = new HashMap<>();      // 只在构造函数和监听线程中访问
+    private final AtomicReference<RuleConfig> current = new AtomicReference<>();
+    private final WatchService watchService;
+    private final long debounceMillis;
+    private final Thread watcherThread;
+    private volatile Exception lastFailure;
+
+    RuleConfigWatcher(RuleConfigSource5 source, Collection<Path> ruleConfigFilePaths, long debounceMillis) throws Exception {
+        this.source = source;
+        this.debounceMillis = debounceMillis;
+        for(Path path : ruleConfigFilePaths)
+            paths.add(path.toAbsolutePath().normalize());
+
+        watchService = FileSystems.getDefault().newWatchService();
+        Set<Path> directories = new HashSet<>();
+        for(Path path : paths) {
+            if(directories.add(path.getParent()))
+                path.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            parsed.put(path, source.parse(path));
+        }
+        publish();
+
+        watcherThread = new Thread(this::watchLoop, "rule-config-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    public RuleConfig current() {
+        return current.get();
+    }
+
+    public Exception getLastFailure() {
+        return lastFailure;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void watchLoop() {
+        try {
+            while(true) {
+                Set<Path> changed = new TreeSet<>();
+                collect(watchService.take(), changed);
+                WatchKey key;
+                while((key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null)
+                    collect(key, changed);
+                if(!changed.isEmpty())
+                    reload(changed);
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // 关闭监听
+        }
+    }
+
+    private void collect(WatchKey key, Set<Path> changed) {
+        Path directory = (Path) key.watchable();
+        for(WatchEvent<?> event : key.pollEvents()) {
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed.addAll(paths);
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if(paths.contains(path))
+                changed.add(path);
+        }
+        key.reset();
+    }
+
+    private void reload(Set<Path> changed) {
+        for(Path path : changed) {
+            try {
+                if(Files.exists(path))
+                    parsed.put(path, source.parse(path));
+                else
+                    parsed.remove(path);
+            } catch (Exception e) {
+                lastFailure = e;
+            }
+        }
+        publish();
+    }
+
+    private void publish() {
+        RuleConfig merged = new RuleConfig();
+        for(Path path : paths) {
+            RuleConfig config = parsed.get(path);
+            if(config != null)
+                merged.putAll(config);
+        }
+        // 所有读取方共享同一个实例, 冻结后不能再修改
+        current.set(merged.freeze());
+    }
+}
+
+/**
+ * 按(规范化路径, 修改时间, 文件大小)缓存解析结果
+ *  1. 同一个版本的文件被并发加载时只解析一次, 其他调用方等待同一个结果(single-flight)
+ *  2. 最多缓存maxEntries个文件, 超出后淘汰最久没有访问的(LRU)
+ * 注意：修改时间精度内发生的、且没有改变文件大小的修改无法被发现
+ * 缓存的配置会被所有调用方共享, 可修改的RuleConfig在放入缓存之前会被冻结
+ */
+class RuleConfigCache<C extends RuleConfigView> {
+
+    interface Loader<C> {
+        C load(Path path) throws Exception;
+    }
+
+    private final Map<Path, Entry<C>> entries;
+    private final ConcurrentHashMap<Version, FutureTask<C>> loading = new ConcurrentHashMap<>();
+    private int maxEntries;     // 只在synchronized(entries)中访问
+
+    RuleConfigCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<Path, Entry<C>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Entry<C>> eldest) {
+                return size() > RuleConfigCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * 至少能缓存minEntries个文件, 容量只增不减
+     */
+    public void ensureCapacity(int minEntries) {
+        synchronized (entries) {
+            maxEntries = Math.max(maxEntries, minEntries);
+        }
+    }
+
+    public C get(Path path, Loader<C> loader) throws Exception {
+        Path realPath = path.toRealPath();
+        BasicFileAttributes attributes = Files.readAttributes(realPath, BasicFileAttributes.class);
+        Version version = new Version(realPath, attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), attributes.size());
+
+        synchronized (entries) {
+            Entry<C> entry = entries.get(realPath);
+            if(entry != null && entry.version.equals(version))
+                return entry.config;
+        }
+
+        FutureTask<C> task = new FutureTask<>(() -> freeze(loader.load(realPath)));
+        FutureTask<C> existing = loading.putIfAbsent(version, task);
+        if(existing == null) {
+            try {
+                task.run();
+                C config = task.get();
+                synchronized (entries) {
+                    entries.put(realPath, new Entry<>(version, config));
+                }
+                return config;
+            } catch (ExecutionException e) {
+                throw unwrap(e);
+            } finally {
+                loading.remove(version, task);
+            }
+        }
+
+        try {
+            return existing.get();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static <C> C freeze(C config) {
+        if(config instanceof RuleConfig)
+            ((RuleConfig) config).freeze();
+        return config;
+    }
+
+    private static Exception unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if(cause instanceof Exception)
+            return (Exception) cause;
+        if(cause instanceof Error)
+            throw (Error) cause;
+        return e;
+    }
+
+    private static class Version {
+        final Path path;
+        final long lastModifiedNanos;
+        final long size;
+
+        Version(Path path, long lastModifiedNanos, long size) {
+            this.path = path;
+            this.lastModifiedNanos = lastModifiedNanos;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o)
+                return true;
+            if(!(o instanceof Version))
+                return false;
+            Version other = (Version) o;
+            return lastModifiedNanos == other.lastModifiedNanos && size == other.size && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, lastModifiedNanos, size);
+        }
+    }
+
+    private static class Entry<C> {
+        final Version version;
+        final C config;
+
+        Entry(Version version, C config) {
+            this.version = version;
+            this.config = config;
+        }
+    }
+}
+
+
 /**
  * 抽象工厂
  * 在简单工厂和工厂方法中类只有一种分类方式
@@ -263,12 +1625,112 @@ class RuleConfigParserFactoryMap {
  * 抽象工厂可以让一个工厂负责创建多个不同类型的对象(比如JsonRuleConfigParser、JsonSystemConfigParser), 有效减少工厂类的数量
  */
 
-interface ISystemConfigParser {}
-class JsonSystemConfigParser implements ISystemConfigParser {}
+class SystemConfig {
+
+    private final Map<String, String> properties = new LinkedHashMap<>();
+
+    public void setProperty(String name, String value) {
+        properties.put(name, value);
+    }
+
+    public String getProperty(String name) {
+        return properties.get(name);
+    }
+
+    public Map<String, String> getProperties() {
+        return Collections.unmodifiableMap(properties);
+    }
+}
+
+interface ISystemConfigParser {
+    SystemConfig parse(String configText);
+}
+
+/**
+ * 系统配置是一个扁平的JSON对象, 嵌套的对象和数组同样展开成 a.b / a.0 形式
+ */
+class JsonSystemConfigParser implements ISystemConfigParser {
+
+    private final Utf8JsonReader reader;
+
+    JsonSystemConfigParser() {
+        this(new Utf8JsonReader());
+    }
+
+    JsonSystemConfigParser(Utf8JsonReader reader) {
+        this.reader = reader;
+    }
+
+    @Override
+    public SystemConfig parse(String configText) {
+        SystemConfig config = new SystemConfig();
+        reader.reset(ByteBuffer.wrap(configText.getBytes(StandardCharsets.UTF_8)));
+        readProperties(config);
+        reader.endDocument();
+        reader.release();
+        return config;
+    }
+
+    /**
+     * 从reader的当前位置读取一个系统配置对象
+     */
+    void readProperties(SystemConfig config) {
+        reader.beginObject();
+        while(reader.hasNext())
+            reader.readFlattened("", reader.nextName(), (section, name, value) -> config.setProperty(name, value));
+        reader.endObject();
+    }
+}
+
+/**
+ * 规则配置和系统配置在同一个文件中时, 一次读取、一遍扫描同时填充两者
+ */
+interface ICombinedConfigParser {
+    void parse(Path path, RuleConfig ruleConfig, SystemConfig systemConfig) throws IOException;
+}
+
+/**
+ * {"rules": {规则配置}, "system": {系统配置}}, 其他顶层字段忽略
+ * rule和system的parser共用一个reader, 整个文件只映射一次、只扫描一遍
+ */
+class JsonCombinedConfigParser implements ICombinedConfigParser {
+
+    private final Utf8JsonReader reader = new Utf8JsonReader();
+    private final JsonRuleConfigParser ruleParser = new JsonRuleConfigParser(reader);
+    private final JsonSystemConfigParser systemParser = new JsonSystemConfigParser(reader);
+
+    @Override
+    public void parse(Path path, RuleConfig ruleConfig, SystemConfig systemConfig) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), ruleConfig, systemConfig);
+        }
+    }
+
+    public void parse(ByteBuffer utf8, RuleConfig ruleConfig, SystemConfig systemConfig) {
+        reader.reset(utf8);
+        try {
+            reader.beginObject();
+            while(reader.hasNext()) {
+                String name = reader.nextName();
+                if("rules".equals(name))
+                    ruleParser.readRules(ruleConfig);
+                else if("system".equals(name))
+                    systemParser.readProperties(systemConfig);
+                else
+                    reader.skipValue();
+            }
+            reader.endObject();
+            reader.endDocument();
+        } finally {
+            reader.release();
+        }
+    }
+}
 
 interface IConfigParserFactory {
     IRuleConfigParser createRuleParser();
     ISystemConfigParser createSystemParser();
+    ICombinedConfigParser createCombinedParser();
 }
 
 class JsonConfigParserFactory implements IConfigParserFactory {
@@ -282,5 +1744,10 @@ class JsonConfigParserFactory implements IConfigParserFactory {
     public ISystemConfigParser createSystemParser() {
         return new JsonSystemConfigParser();
     }
+
+    @Override
+    public ICombinedConfigParser createCombinedParser() {
+        return new JsonCombinedConfigParser();
+    }
 }
 // ......
\ No newline at end of file
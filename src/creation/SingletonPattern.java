@@ -3,7 +3,33 @@ package creation;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
 
 /**
  * 单例模式
@@ -57,7 +83,12 @@ class OrderController {
  */
 class Logger2 {
 
-    private FileWriter writer;
+    enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private volatile Writer writer;
+    private volatile AsyncLogWriter asyncWriter;
+    private boolean shutdownHookRegistered;    // 只在synchronized方法中访问
+    private volatile Level level = Level.INFO;
     private static final Logger2 instance = new Logger2();
 
     private Logger2() {
@@ -70,14 +101,809 @@ class Logger2 {
         return instance;
     }
 
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
     public void log(String message) throws IOException {
+        if(!isEnabled(Level.INFO))
+            return;
+        AsyncLogWriter async = asyncWriter;
+        if(async != null) {
+            async.append(message);
+            return;
+        }
         writer.write(message);
     }
+
+    /**
+     * 参数化日志：模板中的{}依次替换为参数, 级别未开启时不做任何格式化
+     * 单参数和long参数的重载避免了可变参数数组和装箱
+     */
+    public void log(String template, Object arg) throws IOException {
+        log(Level.INFO, template, arg);
+    }
+
+    public void log(String template, long arg) throws IOException {
+        log(Level.INFO, template, arg);
+    }
+
+    public void log(String template, Object... args) throws IOException {
+        log(Level.INFO, template, args);
+    }
+
+    public void log(Level level, String template, Object arg) throws IOException {
+        if(!isEnabled(level))
+            return;
+        LogFormatter formatter = LogFormatter.get();
+        try {
+            int next = formatter.appendUntilPlaceholder(template, 0);
+            if(next >= 0) {
+                formatter.appendObject(arg);
+                formatter.appendRest(template, next);
+            }
+            emit(formatter);
+        } finally {
+            formatter.release();
+        }
+    }
+
+    public void log(Level level, String template, long arg) throws IOException {
+        if(!isEnabled(level))
+            return;
+        LogFormatter formatter = LogFormatter.get();
+        try {
+            int next = formatter.appendUntilPlaceholder(template, 0);
+            if(next >= 0) {
+                formatter.appendLong(arg);
+                formatter.appendRest(template, next);
+            }
+            emit(formatter);
+        } finally {
+            formatter.release();
+        }
+    }
+
+    public void log(Level level, String template, Object... args) throws IOException {
+        if(!isEnabled(level))
+            return;
+        LogFormatter formatter = LogFormatter.get();
+        try {
+            int next = 0;
+            for(int i = 0; i < args.length && next >= 0; i++) {
+                next = formatter.appendUntilPlaceholder(template, next);
+                if(next >= 0)
+                    formatter.appendObject(args[i]);
+            }
+            if(next >= 0)
+                formatter.appendRest(template, next);
+            emit(formatter);
+        } finally {
+            formatter.release();
+        }
+    }
+
+    /**
+     * 同步模式下直接把线程本地的字符缓冲交给writer编码; 异步模式下缓冲会被复用, 只能拷贝成String入队
+     */
+    private void emit(LogFormatter formatter) throws IOException {
+        AsyncLogWriter async = asyncWriter;
+        if(async != null)
+            async.append(formatter.toString());
+        else
+            formatter.writeTo(writer);
+    }
+
+    /**
+     * 开启异步模式：调用线程只负责把日志放入环形缓冲区, 由后台线程批量写盘
+     */
+    public synchronized void startAsync(int bufferSize, int batchSize, long flushIntervalMillis,
+                                        AsyncLogWriter.OverflowPolicy policy) {
+        if(asyncWriter != null)
+            return;
+        asyncWriter = new AsyncLogWriter(writer, bufferSize, batchSize, flushIntervalMillis, policy);
+        if(!shutdownHookRegistered) {
+            shutdownHookRegistered = true;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    stopAsync();
+                } catch (IOException e) {}
+            }));
+        }
+    }
+
+    /**
+     * 关闭异步模式, 等待缓冲区中的日志全部写完
+     */
+    public synchronized void stopAsync() throws IOException {
+        AsyncLogWriter async = asyncWriter;
+        if(async == null)
+            return;
+        asyncWriter = null;
+        async.close();
+    }
+
+    /**
+     * 切换为内存映射文件模式：日志记录直接编码进映射区域, 不再经过FileWriter
+     * 需要在开启异步模式之前切换
+     */
+    public synchronized void useMappedFile(File file, int chunkSize) throws IOException {
+        if(asyncWriter != null)
+            throw new IllegalStateException("stop async mode before switching the log file");
+        switchWriter(new MappedLogFile(file, chunkSize));
+    }
+
+    /**
+     * 切换为多进程共享的追加写文件, 多个JVM可以同时写同一个日志文件; 不加锁, 只有一次write写完的记录是原子的
+     */
+    public synchronized void useSharedFile(File file) throws IOException {
+        useSharedFile(file, false);
+    }
+
+    /**
+     * alwaysLock为true时每条记录都在文件锁下写入, 所有写这个文件的进程都要这样打开
+     */
+    public synchronized void useSharedFile(File file, boolean alwaysLock) throws IOException {
+        if(asyncWriter != null)
+            throw new IllegalStateException("stop async mode before switching the log file");
+        switchWriter(new SharedLogAppender(file, alwaysLock));
+    }
+
+    /**
+     * 把已经写出的日志落盘, 内存映射文件会force映射区域; 异步模式下只包括后台线程已经写出的部分
+     */
+    public void sync() throws IOException {
+        Writer current = writer;
+        if(current instanceof MappedLogFile)
+            ((MappedLogFile) current).sync();
+        else if(current != null)
+            current.flush();
+    }
+
+    private void switchWriter(Writer newWriter) throws IOException {
+        Writer old = writer;
+        writer = newWriter;
+        if(old != null)
+            old.close();
+    }
+}
+
+/**
+ * 基于内存映射的追加写日志文件
+ * 每次write是一条记录：[int 长度][int CRC32][UTF-8内容]
+ * 内容和CRC先写, 长度最后写, 作为记录的提交标记; 映射区域写满后再按chunkSize整块扩展
+ * 崩溃后重新打开时, 从头扫描到第一条不完整的记录为止, 并截掉后面的部分
+ */
+class MappedLogFile extends Writer {
+
+    private static final int HEADER_SIZE = 8;
+
+    private final FileChannel channel;
+    private final int chunkSize;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CRC32 crc = new CRC32();
+
+    private MappedByteBuffer region;
+    private long regionStart;           // region在文件中的起始偏移
+    private boolean closed;
+
+    MappedLogFile(File file, int chunkSize) throws IOException {
+        if(chunkSize <= HEADER_SIZE)
+            throw new IllegalArgumentException("chunkSize too small: " + chunkSize);
+        this.chunkSize = chunkSize;
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long end = scan(channel, null);
+        channel.truncate(end);
+        map(end, chunkSize);
+    }
+
+    @Override
+    public void write(String str) throws IOException {
+        append(CharBuffer.wrap(str));
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        append(CharBuffer.wrap(str, off, off + len));
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        append(CharBuffer.wrap(cbuf, off, len));
+    }
+
+    private synchronized void append(CharBuffer chars) throws IOException {
+        if(closed)
+            throw new IOException("log file is closed");
+        if(!chars.hasRemaining())
+            return;
+
+        // UTF-8下每个char最多编码为3个字节
+        long maxRecordSize = HEADER_SIZE + 3L * chars.remaining();
+        if(maxRecordSize > Integer.MAX_VALUE)
+            throw new IOException("log record too large");
+        if(region.remaining() < maxRecordSize)
+            map(regionStart + region.position(), Math.max(chunkSize, (int) maxRecordSize));
+
+        int start = region.position();
+        region.position(start + HEADER_SIZE);
+        encoder.reset();
+        encoder.encode(chars, region, true);
+        encoder.flush(region);
+        int end = region.position();
+
+        crc.reset();
+        region.position(start + HEADER_SIZE);
+        region.limit(end);
+        crc.update(region);
+        region.limit(region.capacity());
+
+        region.putInt(start + 4, (int) crc.getValue());
+        region.putInt(start, end - start - HEADER_SIZE);
+        region.position(end);
+    }
+
+    /**
+     * 映射区域中的数据对其他进程立即可见, 这里不需要额外操作; 需要落盘时调用sync()
+     */
+    @Override
+    public void flush() {}
+
+    /**
+     * 换块时旧区域已经落盘, 这里只需要force当前区域
+     */
+    public synchronized void sync() {
+        if(!closed)
+            region.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(closed)
+            return;
+        closed = true;
+        region.force();
+        channel.truncate(regionStart + region.position());
+        channel.close();
+    }
+
+    /**
+     * 换块时先force旧区域再丢掉引用, 旧映射随MappedByteBuffer被GC回收而解除
+     * 不保留旧区域, 否则长时间运行的日志会一直占着映射, 最终超过vm.max_map_count
+     */
+    private void map(long position, int size) throws IOException {
+        if(region != null)
+            region.force();
+        region = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+        regionStart = position;
+    }
+
+    /**
+     * 按顺序读出文件中所有完整的记录
+     */
+    static void forEachRecord(File file, Consumer<String> action) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            scan(channel, action);
+        }
+    }
+
+    /**
+     * 从头扫描记录, 返回最后一条完整记录的结束位置
+     */
+    private static long scan(FileChannel channel, Consumer<String> action) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        ByteBuffer payload = ByteBuffer.allocate(0);
+        CRC32 checksum = new CRC32();
+
+        while(position + HEADER_SIZE <= size) {
+            header.clear();
+            channel.read(header, position);
+            int length = header.getInt(0);
+            if(length <= 0 || position + HEADER_SIZE + length > size)
+                break;
+
+            if(payload.capacity() < length)
+                payload = ByteBuffer.allocate(length);
+            payload.clear().limit(length);
+            while(payload.hasRemaining()) {
+                if(channel.read(payload, position + HEADER_SIZE + payload.position()) < 0)
+                    break;
+            }
+            if(payload.hasRemaining())
+                break;
+
+            checksum.reset();
+            checksum.update(payload.array(), 0, length);
+            if((int) checksum.getValue() != header.getInt(4))
+                break;
+
+            if(action != null)
+                action.accept(new String(payload.array(), 0, length, StandardCharsets.UTF_8));
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+}
+
+/**
+ * 多进程共享的日志文件
+ * 单例只能保证一个JVM内不互相覆盖, 多个进程写同一个文件时以O_APPEND打开, 每条记录编码后用一次write写入, 内核保证每次write都追加在文件末尾：
+ *  1. 默认不加锁, 只有一次write写完的记录是原子的; 很大的记录可能被拆成多次write(短写), 和其他进程的记录交错
+ *  2. alwaysLock为true时每条记录都在FileLock下写完, 所有写这个文件的进程都用alwaysLock才能互相协调;
+ *     文件在不保证O_APPEND原子性的文件系统(如NFS)上时也应当用这种模式
+ * FileLock是整个JVM共享的, 同一个JVM内写同一个文件的多个appender先在JVM内按文件排队, 再去拿FileLock
+ */
+class SharedLogAppender extends Writer {
+
+    private static final ConcurrentHashMap<Path, Object> JVM_LOCKS = new ConcurrentHashMap<>();
+
+    private final FileChannel channel;
+    private final Object jvmLock;
+    private final boolean alwaysLock;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+
+    SharedLogAppender(File file, boolean alwaysLock) throws IOException {
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.alwaysLock = alwaysLock;
+        this.jvmLock = JVM_LOCKS.computeIfAbsent(file.toPath().toRealPath(), path -> new Object());
+    }
+
+    @Override
+    public void write(String str) throws IOException {
+        append(CharBuffer.wrap(str));
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        append(CharBuffer.wrap(str, off, off + len));
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        append(CharBuffer.wrap(cbuf, off, len));
+    }
+
+    private synchronized void append(CharBuffer chars) throws IOException {
+        int maxBytes = 3 * chars.remaining();
+        if(buffer.capacity() < maxBytes)
+            buffer = ByteBuffer.allocateDirect(Math.max(maxBytes, buffer.capacity() * 2));
+
+        buffer.clear();
+        encoder.reset();
+        encoder.encode(chars, buffer, true);
+        encoder.flush(buffer);
+        buffer.flip();
+        if(!buffer.hasRemaining())
+            return;
+
+        if(!alwaysLock) {
+            while(buffer.hasRemaining())
+                channel.write(buffer);
+            return;
+        }
+        synchronized (jvmLock) {
+            FileLock lock = channel.lock();
+            try {
+                while(buffer.hasRemaining())
+                    channel.write(buffer);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * 吞吐测试：同时启动N个进程向同一个文件写日志, 最后检查每一行都完整且没有丢失
+     * 用法: java creation.SharedLogAppender [processes] [linesPerProcess] [file] [lock]
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length > 0 && "worker".equals(args[0])) {
+            runWorker(new File(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), Boolean.parseBoolean(args[4]));
+            return;
+        }
+
+        int processes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int lines = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        File file = new File(args.length > 2 ? args[2] : "shared-log.txt");
+        boolean alwaysLock = args.length > 3 && "lock".equals(args[3]);
+        file.delete();
+
+        String java = ProcessHandle.current().info().command().orElse("java");
+        String classpath = System.getProperty("java.class.path");
+        List<Process> workers = new ArrayList<>();
+        long start = System.nanoTime();
+        for(int i = 0; i < processes; i++) {
+            workers.add(new ProcessBuilder(java, "-cp", classpath, SharedLogAppender.class.getName(),
+                    "worker", file.getPath(), String.valueOf(i), String.valueOf(lines), String.valueOf(alwaysLock))
+                    .inheritIO().start());
+        }
+        for(Process worker : workers) {
+            if(worker.waitFor() != 0)
+                throw new IllegalStateException("worker exited with " + worker.exitValue());
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        int[] counts = new int[processes];
+        int torn = 0;
+        for(String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            String[] parts = line.split(" ");
+            if(parts.length != 3 || !parts[2].equals(payload(Integer.parseInt(parts[1]))))
+                torn++;
+            else
+                counts[Integer.parseInt(parts[0])]++;
+        }
+        int total = Arrays.stream(counts).sum();
+        System.out.printf("%d processes, %d lines, %d torn, %.0f lines/s%n",
+                processes, total, torn, total / (elapsedNanos / 1e9));
+        if(torn > 0 || total != processes * lines)
+            throw new IllegalStateException("expected " + processes * lines + " intact lines");
+    }
+
+    private static void runWorker(File file, int worker, int lines, boolean alwaysLock) throws IOException {
+        try (SharedLogAppender appender = new SharedLogAppender(file, alwaysLock)) {
+            for(int i = 0; i < lines; i++)
+                appender.write(worker + " " + i + " " + payload(i) + "\n");
+        }
+    }
+
+    private static String payload(int seq) {
+        return "x".repeat(16 + seq % 64);
+    }
+}
+
+/**
+ * 有界无锁环形缓冲区(多生产者、单消费者)
+ * 每个槽位带一个序号：序号 == 写入位置 表示可写, 序号 == 写入位置 + 1 表示可读
+ */
+class LogRingBuffer {
+
+    private final int mask;
+    private final AtomicReferenceArray<String> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(0);
+    private long head;                                  // 只有消费者线程访问
+
+    LogRingBuffer(int capacity) {
+        if(capacity < 2 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        this.mask = capacity - 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for(int i = 0; i < capacity; i++)
+            sequences.set(i, i);
+    }
+
+    /**
+     * 缓冲区已满时返回false
+     */
+    boolean offer(String message) {
+        long pos = tail.get();
+        for(;;) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if(diff == 0) {
+                if(tail.compareAndSet(pos, pos + 1)) {
+                    slots.lazySet(index, message);
+                    // volatile写: 生产者发布之后再读AsyncLogWriter.running, 和关闭方先写running再检查缓冲区的顺序配对
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            }
+            else if(diff < 0) {
+                return false;
+            }
+            else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * 只能由消费者线程调用, 返回取出的条数
+     */
+    int drainTo(String[] batch, int max) {
+        int n = 0;
+        while(n < max) {
+            int index = (int) (head & mask);
+            if(sequences.get(index) != head + 1)
+                break;
+            batch[n++] = slots.get(index);
+            slots.lazySet(index, null);
+            sequences.lazySet(index, head + mask + 1);
+            head++;
+        }
+        return n;
+    }
+
+    boolean isEmpty() {
+        return sequences.get((int) (head & mask)) != head + 1;
+    }
+}
+
+/**
+ * 异步批量写日志：调用线程只做入队, 后台线程按批次写入并合并flush
+ *  1. 每批最多写batchSize条
+ *  2. 距离上次flush超过flushIntervalMillis, 或者缓冲区已经取空时flush一次
+ *  3. 缓冲区满时按OverflowPolicy丢弃或阻塞
+ */
+class AsyncLogWriter {
+
+    enum OverflowPolicy { DROP, BLOCK }
+
+    private static final long BLOCK_PARK_NANOS = 50_000;
+
+    private final Writer out;
+    private final LogRingBuffer buffer;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final OverflowPolicy policy;
+    private final Thread writerThread;
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    private volatile boolean running = true;
+    private volatile boolean sleeping;
+    private volatile IOException failure;
+
+    AsyncLogWriter(Writer out, int bufferSize, int batchSize, long flushIntervalMillis, OverflowPolicy policy) {
+        if(batchSize <= 0 || flushIntervalMillis <= 0)
+            throw new IllegalArgumentException("batchSize and flushIntervalMillis must be positive");
+        this.out = out;
+        this.buffer = new LogRingBuffer(bufferSize);
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.policy = policy;
+        this.writerThread = new Thread(this::drainLoop, "async-log-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    public void append(String message) throws IOException {
+        if(failure != null)
+            throw failure;
+        if(!running)
+            throw new IOException("async log writer is closed");
+
+        while(!buffer.offer(message)) {
+            if(policy == OverflowPolicy.DROP) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if(!running)
+                throw new IOException("async log writer is closed");
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+        }
+        if(!running) {
+            // 入队时close()已经开始, 写线程可能已经退出, 自己把剩下的日志写出去, 不会悄悄丢失
+            drainRemaining();
+            return;
+        }
+        if(sleeping)
+            LockSupport.unpark(writerThread);
+    }
+
+    /**
+     * DROP策略下被丢弃的日志条数
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(writerThread);
+        drainRemaining();
+    }
+
+    /**
+     * 关闭之后由关闭方或晚到的生产者调用：等写线程退出, 再在锁内接替它消费, 保证任意时刻只有一个消费者
+     */
+    private synchronized void drainRemaining() throws IOException {
+        boolean interrupted = false;
+        while(writerThread.isAlive()) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        if(failure != null)
+            throw failure;
+
+        String[] batch = new String[batchSize];
+        boolean dirty = false;
+        int n;
+        while((n = buffer.drainTo(batch, batchSize)) > 0) {
+            for(int i = 0; i < n; i++)
+                out.write(batch[i]);
+            dirty = true;
+        }
+        if(dirty)
+            out.flush();
+    }
+
+    private void drainLoop() {
+        String[] batch = new String[batchSize];
+        long lastFlush = System.nanoTime();
+        boolean dirty = false;
+        try {
+            while(running || !buffer.isEmpty()) {
+                int n = buffer.drainTo(batch, batchSize);
+                for(int i = 0; i < n; i++) {
+                    out.write(batch[i]);
+                    batch[i] = null;
+                }
+                dirty |= n > 0;
+
+                long now = System.nanoTime();
+                if(dirty && (n == 0 || now - lastFlush >= flushIntervalNanos)) {
+                    out.flush();
+                    dirty = false;
+                    lastFlush = now;
+                }
+
+                if(n == 0) {
+                    // 生产者入队后发现sleeping会唤醒; 即使错过唤醒, 最多也只等待一个flush周期
+                    sleeping = true;
+                    if(running && buffer.isEmpty())
+                        LockSupport.parkNanos(this, flushIntervalNanos);
+                    sleeping = false;
+                }
+            }
+            if(dirty)
+                out.flush();
+        } catch (IOException e) {
+            failure = e;
+            running = false;
+        }
+    }
+}
+
+/**
+ * 线程本地的日志格式化缓冲区, 格式化过程中不创建中间String
+ * 参数的toString()里又打日志时, 线程本地的缓冲区还在被外层使用, 内层改用新建的缓冲区
+ */
+class LogFormatter {
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final ThreadLocal<LogFormatter> local = ThreadLocal.withInitial(LogFormatter::new);
+
+    private char[] buffer = new char[INITIAL_CAPACITY];
+    private int length;
+    private boolean inUse;
+
+    /**
+     * 用完必须调用release()
+     */
+    static LogFormatter get() {
+        LogFormatter formatter = local.get();
+        if(formatter.inUse)
+            formatter = new LogFormatter();
+        formatter.inUse = true;
+        formatter.length = 0;
+        return formatter;
+    }
+
+    /**
+     * 拷贝模板直到下一个{}, 返回{}之后的位置; 没有更多占位符时拷贝剩余部分并返回-1
+     */
+    int appendUntilPlaceholder(String template, int from) {
+        int placeholder = template.indexOf("{}", from);
+        if(placeholder < 0) {
+            appendRest(template, from);
+            return -1;
+        }
+        append(template, from, placeholder);
+        return placeholder + 2;
+    }
+
+    void appendRest(String template, int from) {
+        append(template, from, template.length());
+    }
+
+    void appendObject(Object arg) {
+        if(arg instanceof CharSequence) {
+            CharSequence chars = (CharSequence) arg;
+            if(chars instanceof String)
+                append((String) chars, 0, chars.length());
+            else
+                for(int i = 0; i < chars.length(); i++)
+                    appendChar(chars.charAt(i));
+        }
+        else if(arg instanceof Long || arg instanceof Integer || arg instanceof Short || arg instanceof Byte) {
+            appendLong(((Number) arg).longValue());
+        }
+        else {
+            String text = String.valueOf(arg);
+            append(text, 0, text.length());
+        }
+    }
+
+    void appendLong(long value) {
+        if(value == Long.MIN_VALUE) {
+            append("-9223372036854775808", 0, 20);
+            return;
+        }
+        ensureCapacity(length + 20);
+        if(value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for(long v = value; v >= 10; v /= 10)
+            digits++;
+        int end = length + digits;
+        for(int i = end - 1; i >= length; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        length = end;
+    }
+
+    void writeTo(Writer writer) throws IOException {
+        writer.write(buffer, 0, length);
+    }
+
+    /**
+     * 偶尔出现的超长日志不应该让缓冲区一直占着内存
+     */
+    void release() {
+        if(buffer.length > MAX_RETAINED_CAPACITY)
+            buffer = new char[INITIAL_CAPACITY];
+        length = 0;
+        inUse = false;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length);
+    }
+
+    private void append(String text, int from, int to) {
+        ensureCapacity(length + to - from);
+        text.getChars(from, to, buffer, length);
+        length += to - from;
+    }
+
+    private void appendChar(char c) {
+        ensureCapacity(length + 1);
+        buffer[length++] = c;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(capacity > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+    }
 }
 
 class UserController2 {
     public void login(String username, String password) throws IOException {
-        Logger2.getInstance().log(username + " login!");
+        Logger2.getInstance().log("{} login!", username);
     }
 }
 
@@ -161,4 +987,217 @@ enum IdGenerator4 {
     public long getId() {
         return id.incrementAndGet();
     }
-}
\ No newline at end of file
+}
+
+/**
+ * 号段式(按线程批量租用ID)
+ * 每个线程一次从共享计数器租用BLOCK_SIZE个ID, 之后在线程本地发号, 不再有原子操作
+ * 线程退出时手上没用完的ID会被浪费, 可以通过getWastedIds()统计
+ * 已退出线程的号段在登记新线程时顺带清理: 号段数翻倍才扫描一次, 摊到每次登记是常数时间,
+ * 每个请求一个线程(或者虚拟线程)时队列也只和存活的线程数成正比
+ */
+class IdGenerator5 {
+
+    private static final int BLOCK_SIZE = 1024;
+    private static final int MIN_RECLAIM_THRESHOLD = 64;
+
+    private final AtomicLong nextBlock = new AtomicLong(0);
+    private final ThreadLocal<Lease> lease = ThreadLocal.withInitial(this::register);
+    private final ConcurrentLinkedQueue<Lease> leases = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger leaseCount = new AtomicInteger();
+    private volatile int reclaimThreshold = MIN_RECLAIM_THRESHOLD;
+    private final AtomicLong wastedIds = new AtomicLong(0);
+    private static final IdGenerator5 instance = new IdGenerator5();
+    private IdGenerator5(){}
+
+    public static IdGenerator5 getInstance() {
+        return instance;
+    }
+
+    public long getId() {
+        Lease current = lease.get();
+        if(current.next == current.end) {
+            current.next = nextBlock.getAndAdd(BLOCK_SIZE) + 1;
+            current.end = current.next + BLOCK_SIZE;
+        }
+        return current.next++;
+    }
+
+    /**
+     * 已租出的号段数
+     */
+    public long getLeasedBlocks() {
+        return nextBlock.get() / BLOCK_SIZE;
+    }
+
+    /**
+     * 已退出线程没用完的ID数量, 除以getLeasedBlocks()即为平均每个号段的浪费
+     */
+    public long getWastedIds() {
+        reclaimDeadLeases();
+        return wastedIds.get();
+    }
+
+    private Lease register() {
+        Lease created = new Lease(Thread.currentThread());
+        leases.add(created);
+        if(leaseCount.incrementAndGet() >= reclaimThreshold) {
+            reclaimDeadLeases();
+            reclaimThreshold = Math.max(MIN_RECLAIM_THRESHOLD, leaseCount.get() * 2);
+        }
+        return created;
+    }
+
+    /**
+     * 线程结束happens-before isAlive()返回false, 所以此时读取它的号段是安全的
+     */
+    private void reclaimDeadLeases() {
+        for(Lease l : leases) {
+            Thread owner = l.owner.get();
+            if((owner == null || !owner.isAlive()) && leases.remove(l)) {
+                leaseCount.decrementAndGet();
+                wastedIds.addAndGet(l.end - l.next);
+            }
+        }
+    }
+
+    private static class Lease {
+        final WeakReference<Thread> owner;
+        long next;
+        long end;
+
+        Lease(Thread owner) {
+            this.owner = new WeakReference<>(owner);
+        }
+    }
+}
+
+
+/**
+ * 按时间有序的64位ID(类似Snowflake)
+ *  |  41位毫秒时间戳  |  10位workerId  |  12位序列号  |
+ * workerId通过临时目录下的文件锁认领, 同一台机器上的多个进程不需要额外协调就不会重复
+ *
+ * 时间戳和序列号合在一个AtomicLong里, 同一毫秒内直接incrementAndGet：
+ *  1. 序列号溢出时自然进位到下一毫秒(向未来借时间), 不需要自旋等待
+ *  2. 时钟回拨时继续在已有的时间戳上递增, ID不会倒退
+ *  3. 借用的时间超过MAX_BORROW_MILLIS时让调用线程park一会儿, 等待真实时钟追上来
+ */
+enum IdGenerator6 {
+    INSTANCE;
+
+    private static final long EPOCH = 1577836800000L;            // 2020-01-01T00:00:00Z
+    private static final int SEQUENCE_BITS = 12;
+    private static final int WORKER_ID_BITS = 10;
+    private static final int MAX_WORKER_ID = (1 << WORKER_ID_BITS) - 1;
+    private static final long MAX_BORROW_MILLIS = 5;
+
+    private final AtomicLong state = new AtomicLong(0);        // 时间戳 << SEQUENCE_BITS | 序列号
+    private FileLock workerLock;
+    private final long workerId = claimWorkerId();
+
+    public long getId() {
+        long now = System.currentTimeMillis() - EPOCH;
+        long current = state.get();
+        long next;
+        if(now > (current >>> SEQUENCE_BITS) && state.compareAndSet(current, now << SEQUENCE_BITS)) {
+            next = now << SEQUENCE_BITS;
+        }
+        else {
+            next = state.incrementAndGet();
+            // 和本线程刚读到的时钟比, 不依赖其他线程发布的时间
+            long borrowed = (next >>> SEQUENCE_BITS) - now;
+            if(borrowed > MAX_BORROW_MILLIS)
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(borrowed - MAX_BORROW_MILLIS));
+        }
+        long timestamp = next >>> SEQUENCE_BITS;
+        long sequence = next & ((1L << SEQUENCE_BITS) - 1);
+        return (timestamp << (WORKER_ID_BITS + SEQUENCE_BITS)) | (workerId << SEQUENCE_BITS) | sequence;
+    }
+
+    public long getWorkerId() {
+        return workerId;
+    }
+
+    /**
+     * 可以用-Didgen.workerId指定; 否则从pid对应的编号开始, 认领第一个没有被其他进程锁住的编号
+     * 锁在进程退出时由操作系统释放
+     */
+    private int claimWorkerId() {
+        String configured = System.getProperty("idgen.workerId");
+        if(configured != null) {
+            int id = Integer.parseInt(configured);
+            if(id < 0 || id > MAX_WORKER_ID)
+                throw new IllegalArgumentException("idgen.workerId out of range: " + id);
+            return id;
+        }
+
+        File dir = new File(System.getProperty("java.io.tmpdir"), "idgen-workers");
+        dir.mkdirs();
+        int start = (int) (ProcessHandle.current().pid() & MAX_WORKER_ID);
+        for(int i = 0; i <= MAX_WORKER_ID; i++) {
+            int id = (start + i) & MAX_WORKER_ID;
+            try {
+                FileChannel channel = FileChannel.open(new File(dir, id + ".lock").toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock = channel.tryLock();
+                if(lock != null) {
+                    workerLock = lock;
+                    return id;
+                }
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        throw new IllegalStateException("no free worker id in " + dir);
+    }
+}
+
+
+/**
+ * 重启后不重复的ID生成器
+ * 磁盘上只记录一个"已预留的上限", 启动时从这个上限继续发号
+ * 发号超过上限时才把上限再往后推RESERVE_STEP并force()落盘, 每RESERVE_STEP个ID只需要一次fsync
+ * 重启会跳过上次没用完的预留区间, 这是换取少量fsync的代价
+ */
+enum IdGenerator7 {
+    INSTANCE;
+
+    private static final long RESERVE_STEP = 100_000;
+
+    private final MappedByteBuffer store;
+    private final AtomicLong id;
+    private volatile long reserved;
+
+    IdGenerator7() {
+        File file = new File(System.getProperty("idgen.file", "id.dat"));
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            store = channel.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);   // 映射在channel关闭后依然有效
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        reserved = store.getLong(0);
+        id = new AtomicLong(reserved);
+    }
+
+    public long getId() {
+        long next = id.incrementAndGet();
+        if(next > reserved)
+            reserve(next);
+        return next;
+    }
+
+    /**
+     * 先落盘新的上限, 再放行超出旧上限的ID
+     */
+    private synchronized void reserve(long needed) {
+        while(needed > reserved) {
+            long upper = reserved + RESERVE_STEP;
+            store.putLong(0, upper);
+            store.force();
+            reserved = upper;
+        }
+    }
+}
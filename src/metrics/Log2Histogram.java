@@ -0,0 +1,87 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 以2的幂为桶边界的耗时直方图, 第i个桶统计[2^(i-1), 2^i)纳秒, 0单独一个桶
+ * 每个桶是一个LongAdder, 记录时不分配对象, 多线程同时记录也会分散到不同的cell上
+ * 分位数只精确到桶的上界, 用来看数量级足够
+ * 资源池(creation.ResourcePoolMetrics)和接口统计(structural.ApiMetrics)共用
+ */
+public class Log2Histogram {
+
+    private final LongAdder[] buckets = new LongAdder[65];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public Log2Histogram() {
+        for(int i = 0; i < buckets.length; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    public void record(long nanos) {
+        if(nanos < 0)
+            nanos = 0;
+        buckets[64 - Long.numberOfLeadingZeros(nanos)].increment();
+        count.increment();
+        min.accumulate(nanos);
+        if(nanos > 0) {
+            sum.add(nanos);
+            max.accumulate(nanos);
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSumNanos() {
+        return sum.sum();
+    }
+
+    public long getMeanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    /**
+     * 没有记录时返回0
+     */
+    public long getMinNanos() {
+        return getCount() == 0 ? 0 : min.get();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    /**
+     * 返回第一个累计占比达到percentile的桶的上界
+     */
+    public long percentileNanos(double percentile) {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for(int i = 0; i < buckets.length; i++)
+            total += counts[i] = buckets[i].sum();
+        if(total == 0)
+            return 0;
+
+        long threshold = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for(int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if(seen >= threshold && counts[i] > 0)
+                return i == 0 ? 0 : Math.min(max.get(), i == 64 ? Long.MAX_VALUE : (1L << i) - 1);
+        }
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%dns p50=%dns p90=%dns p99=%dns max=%dns",
+                getCount(), getMeanNanos(), percentileNanos(50), percentileNanos(90), percentileNanos(99), getMaxNanos());
+    }
+}
@@ -1,5 +1,26 @@
 package structural;
 
+import metrics.Log2Histogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+
 /**
  * 代理模式
  * 在不改变原始类(被代理类)代码的情况下, 通过引入代理类来给原始类附加功能
@@ -28,8 +49,143 @@ class RequestInfo {
 }
 
 
+/**
+ * 按接口名聚合请求次数、总耗时、最小/最大耗时和耗时直方图, 耗时统一按纳秒保存
+ * 接口名到下标的映射放在ConcurrentHashMap里, 统计对象放在按下标访问的数组里, 只在注册新接口时加锁扩容
+ * 记录路径只有一次map查找和几个LongAdder/LongAccumulator更新, 不加锁; 多核同时记录时更新分散在不同的cell上
+ * 热点路径用recordRequest(apiId, startNanos, durationNanos)：提前register拿到下标, 省掉map查找, 也不用为每次请求new RequestInfo
+ */
 class MetricsCollector {
-    void recordRequest(RequestInfo requestInfo){}
+
+    private final ConcurrentHashMap<String, Integer> apiIds = new ConcurrentHashMap<>();
+    private volatile ApiMetrics[] apis = new ApiMetrics[8];
+    private int apiCount;
+
+    void recordRequest(RequestInfo requestInfo) {
+        // 先注册再读数组, 注册可能扩容
+        int id = register(requestInfo.name);
+        apis[id].record(TimeUnit.MILLISECONDS.toNanos(requestInfo.responseTime));
+    }
+
+    /**
+     * apiId来自register, 时间来自System.nanoTime(); 不分配对象
+     */
+    void recordRequest(int apiId, long startNanos, long durationNanos) {
+        apis[apiId].record(startNanos, durationNanos);
+    }
+
+    /**
+     * 返回接口的下标, 同一个接口名总是得到同一个下标
+     */
+    int register(String name) {
+        Integer id = apiIds.get(name);
+        return id != null ? id : registerSlow(name);
+    }
+
+    private synchronized int registerSlow(String name) {
+        Integer id = apiIds.get(name);
+        if(id != null)
+            return id;
+
+        ApiMetrics[] current = apis;
+        if(apiCount == current.length)
+            current = Arrays.copyOf(current, current.length * 2);
+        current[apiCount] = new ApiMetrics(name);
+        // 先发布数组再发布下标, 拿到下标的线程一定能看到对应的统计对象
+        apis = current;
+        apiIds.put(name, apiCount);
+        return apiCount++;
+    }
+
+    /**
+     * 接口没有记录过时返回null
+     */
+    ApiMetrics getMetrics(String name) {
+        Integer id = apiIds.get(name);
+        return id == null ? null : apis[id];
+    }
+
+    Map<String, ApiMetrics> getAllMetrics() {
+        ApiMetrics[] current = apis;
+        Map<String, ApiMetrics> result = new LinkedHashMap<>();
+        for(ApiMetrics metrics : current) {
+            if(metrics != null)
+                result.put(metrics.getName(), metrics);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for(ApiMetrics metrics : getAllMetrics().values())
+            builder.append(metrics).append('\n');
+        return builder.toString();
+    }
+}
+
+/**
+ * 单个接口的统计, 耗时分布用metrics.Log2Histogram记录
+ */
+class ApiMetrics {
+
+    private final String name;
+    private final Log2Histogram histogram = new Log2Histogram();
+    private final LongAccumulator lastStart = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+    ApiMetrics(String name) {
+        this.name = name;
+    }
+
+    void record(long nanos) {
+        histogram.record(nanos);
+    }
+
+    void record(long startNanos, long durationNanos) {
+        histogram.record(durationNanos);
+        lastStart.accumulate(startNanos);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return histogram.getCount();
+    }
+
+    public long getSumNanos() {
+        return histogram.getSumNanos();
+    }
+
+    public long getMinNanos() {
+        return histogram.getMinNanos();
+    }
+
+    public long getMaxNanos() {
+        return histogram.getMaxNanos();
+    }
+
+    /**
+     * 最近一次请求的开始时间(System.nanoTime()), 只有按apiId记录的请求会更新; 没有时返回Long.MIN_VALUE
+     */
+    public long getLastStartNanos() {
+        return lastStart.get();
+    }
+
+    public long getMeanNanos() {
+        return histogram.getMeanNanos();
+    }
+
+    public long percentileNanos(double percentile) {
+        return histogram.percentileNanos(percentile);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: count=%d mean=%dns min=%dns p50=%dns p99=%dns max=%dns", name, getCount(),
+                getMeanNanos(), getMinNanos(), percentileNanos(50), percentileNanos(99), getMaxNanos());
+    }
 }
 
 
@@ -79,36 +235,43 @@ class UserController2 implements IUserController {
 }
 
 
+/**
+ * 接口下标在构造时注册好, 计时用System.nanoTime(), 亚毫秒级的接口也能统计出来; 每次请求不分配对象
+ */
 class UserControllerProxy1 implements IUserController {
 
     private MetricsCollector metricsCollector;
     public UserController2 userController2;
+    private final int loginId;
+    private final int registerId;
 
     public UserControllerProxy1(MetricsCollector metricsCollector, UserController2 userController2) {
         this.metricsCollector = metricsCollector;
         this.userController2 = userController2;
+        this.loginId = metricsCollector.register("login");
+        this.registerId = metricsCollector.register("register");
     }
 
     @Override
     public void login() {
-        long startTimestamp = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         userController2.login();
-        long endTimestamp = System.currentTimeMillis();
-        long responseTime = endTimestamp - startTimestamp;
-        metricsCollector.recordRequest(new RequestInfo("login", responseTime, startTimestamp, endTimestamp));
+        metricsCollector.recordRequest(loginId, startNanos, System.nanoTime() - startNanos);
     }
 
     @Override
     public void register() {
-        long startTimestamp = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         userController2.register();
-        long endTimestamp = System.currentTimeMillis();
-        long responseTime = endTimestamp - startTimestamp;
-        metricsCollector.recordRequest(new RequestInfo("register", responseTime, startTimestamp, endTimestamp));
+        metricsCollector.recordRequest(registerId, startNanos, System.nanoTime() - startNanos);
     }
 
     public static void main(String[] args) {
-        IUserController userController2 = new UserControllerProxy1(new MetricsCollector(), new UserController2());
+        MetricsCollector metricsCollector = new MetricsCollector();
+        IUserController userController2 = new UserControllerProxy1(metricsCollector, new UserController2());
+        userController2.login();
+        userController2.register();
+        System.out.print(metricsCollector);
     }
 }
 
@@ -120,30 +283,357 @@ class UserControllerProxy1 implements IUserController {
 class UserControllerProxy2 extends UserController2 {
 
     private MetricsCollector metricsCollector;
+    private final int loginId;
+    private final int registerId;
 
     public UserControllerProxy2() {
         metricsCollector = new MetricsCollector();
+        loginId = metricsCollector.register("login");
+        registerId = metricsCollector.register("register");
     }
 
     @Override
     public void login() {
-        long startTimestamp = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         super.login();
-        long endTimestamp = System.currentTimeMillis();
-        long responseTime = endTimestamp - startTimestamp;
-        metricsCollector.recordRequest(new RequestInfo("login", responseTime, startTimestamp, endTimestamp));
+        metricsCollector.recordRequest(loginId, startNanos, System.nanoTime() - startNanos);
     }
 
     @Override
     public void register() {
-        long startTimestamp = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         super.register();
-        long endTimestamp = System.currentTimeMillis();
-        long responseTime = endTimestamp - startTimestamp;
-        metricsCollector.recordRequest(new RequestInfo("register", responseTime, startTimestamp, endTimestamp));
+        metricsCollector.recordRequest(registerId, startNanos, System.nanoTime() - startNanos);
     }
 
     public static void main(String[] args) {
         UserController2 userController2 = new UserControllerProxy2();
     }
-}
\ No newline at end of file
+}
+
+
+/**
+ * 动态代理：为任意接口生成计时代理, 效果等同于手写的UserControllerProxy1
+ * java.lang.reflect.Proxy每次调用都要走InvocationHandler和Method.invoke, 参数装箱成Object[];
+ * 这里直接拼出代理类的字节码, 用Lookup.defineHiddenClass加载, 生成的方法体和手写代理一样：
+ *  long start = System.nanoTime(); [return] target.m(args); collector.recordRequest(mId, start, System.nanoTime() - start);
+ * 每个方法的apiId放在final字段里, 隐藏类的final字段会被JIT当成常量, 调用时没有反射、装箱和map查找
+ *
+ * 方法体里没有分支, 所以不需要StackMapTable; 代价是抛异常的调用不会被记录
+ * 同一个接口只生成一次代理类, 不同的MetricsCollector通过构造参数传入各自注册的apiId
+ */
+class TimingProxyFactory {
+
+    private static final ClassValue<MethodHandle> CONSTRUCTORS = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                lookup.accessClass(type);
+                byte[] bytes = new ProxyClassWriter(type, proxiedMethods(type)).toByteArray();
+                MethodHandles.Lookup proxyLookup = lookup.defineHiddenClass(bytes, true);
+                return proxyLookup.findConstructor(proxyLookup.lookupClass(),
+                        MethodType.methodType(void.class, type, MetricsCollector.class, int[].class));
+            } catch (IllegalAccessException | NoSuchMethodException e) {
+                throw new IllegalArgumentException("cannot proxy " + type.getName(), e);
+            }
+        }
+    };
+
+    private TimingProxyFactory() {}
+
+    /**
+     * 接口的每个方法按方法名注册到collector, 重载的方法共用一个统计
+     */
+    static <T> T create(Class<T> type, T target, MetricsCollector collector) {
+        if(!type.isInterface())
+            throw new IllegalArgumentException(type.getName() + " is not an interface");
+        List<Method> methods = proxiedMethods(type);
+        int[] apiIds = new int[methods.size()];
+        for(int i = 0; i < apiIds.length; i++)
+            apiIds[i] = collector.register(methods.get(i).getName());
+        try {
+            return type.cast(CONSTRUCTORS.get(type).invoke(type.cast(target), collector, apiIds));
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 接口(含父接口)的所有实例方法, 签名相同的只保留一个; 顺序固定, 和生成的apiId字段一一对应
+     */
+    static List<Method> proxiedMethods(Class<?> type) {
+        Map<String, Method> methods = new TreeMap<>();
+        for(Method method : type.getMethods()) {
+            if(!Modifier.isStatic(method.getModifiers()))
+                methods.putIfAbsent(method.getName() + descriptor(method), method);
+        }
+        return new ArrayList<>(methods.values());
+    }
+
+    static String descriptor(Method method) {
+        return MethodType.methodType(method.getReturnType(), method.getParameterTypes()).toMethodDescriptorString();
+    }
+}
+
+/**
+ * 手写的最小class文件生成器, 只支持TimingProxyFactory需要的指令
+ * 生成的类：
+ *  final class structural.TimingProxy implements 接口 {
+ *      private final 接口 target; private final MetricsCollector collector; private final int id0, id1, ...;
+ *      TimingProxy(接口 target, MetricsCollector collector, int[] ids) {...}
+ *      public final 返回值 方法(参数) {...}
+ *  }
+ */
+class ProxyClassWriter {
+
+    private static final String CLASS_NAME = "structural/TimingProxy";
+    private static final String COLLECTOR = "structural/MetricsCollector";
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream constants = new DataOutputStream(pool);
+    private final Map<String, Integer> constantIndex = new HashMap<>();
+    private int constantCount = 1;
+
+    private final Class<?> type;
+    private final List<Method> methods;
+
+    ProxyClassWriter(Class<?> type, List<Method> methods) {
+        this.type = type;
+        this.methods = methods;
+    }
+
+    byte[] toByteArray() {
+        try {
+            String typeName = type.getName().replace('.', '/');
+            String typeDescriptor = "L" + typeName + ";";
+
+            ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+            DataOutputStream body = new DataOutputStream(bodyBytes);
+            body.writeShort(0x0010 | 0x0020);   // ACC_FINAL | ACC_SUPER
+            body.writeShort(classRef(CLASS_NAME));
+            body.writeShort(classRef("java/lang/Object"));
+            body.writeShort(1);
+            body.writeShort(classRef(typeName));
+
+            body.writeShort(2 + methods.size());
+            writeField(body, "target", typeDescriptor);
+            writeField(body, "collector", "L" + COLLECTOR + ";");
+            for(int i = 0; i < methods.size(); i++)
+                writeField(body, "id" + i, "I");
+
+            body.writeShort(1 + methods.size());
+            writeConstructor(body, typeDescriptor);
+            for(int i = 0; i < methods.size(); i++)
+                writeMethod(body, typeName, typeDescriptor, methods.get(i), i);
+            body.writeShort(0);   // 类属性
+
+            ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(classBytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(52);
+            out.writeShort(constantCount);
+            pool.writeTo(out);
+            bodyBytes.writeTo(out);
+            return classBytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void writeField(DataOutputStream body, String name, String descriptor) throws IOException {
+        body.writeShort(0x0002 | 0x0010);   // ACC_PRIVATE | ACC_FINAL
+        body.writeShort(utf8(name));
+        body.writeShort(utf8(descriptor));
+        body.writeShort(0);
+    }
+
+    private void writeConstructor(DataOutputStream body, String typeDescriptor) throws IOException {
+        ByteArrayOutputStream codeBytes = new ByteArrayOutputStream();
+        DataOutputStream code = new DataOutputStream(codeBytes);
+        code.writeByte(0x2A);   // aload_0
+        code.writeByte(0xB7);   // invokespecial Object.<init>
+        code.writeShort(methodRef(10, "java/lang/Object", "<init>", "()V"));
+        code.writeByte(0x2A);
+        code.writeByte(0x2B);   // aload_1
+        code.writeByte(0xB5);   // putfield
+        code.writeShort(fieldRef("target", typeDescriptor));
+        code.writeByte(0x2A);
+        code.writeByte(0x2C);   // aload_2
+        code.writeByte(0xB5);
+        code.writeShort(fieldRef("collector", "L" + COLLECTOR + ";"));
+        for(int i = 0; i < methods.size(); i++) {
+            code.writeByte(0x2A);
+            code.writeByte(0x2D);   // aload_3
+            code.writeByte(0x11);   // sipush
+            code.writeShort(i);
+            code.writeByte(0x2E);   // iaload
+            code.writeByte(0xB5);
+            code.writeShort(fieldRef("id" + i, "I"));
+        }
+        code.writeByte(0xB1);   // return
+
+        body.writeShort(0x0000);
+        body.writeShort(utf8("<init>"));
+        body.writeShort(utf8("(" + typeDescriptor + "L" + COLLECTOR + ";[I)V"));
+        writeCode(body, codeBytes.toByteArray(), 3, 4);
+    }
+
+    private void writeMethod(DataOutputStream body, String typeName, String typeDescriptor, Method method, int index)
+            throws IOException {
+        int argumentSlots = 0;
+        for(Class<?> parameter : method.getParameterTypes())
+            argumentSlots += slots(parameter);
+        int start = 1 + argumentSlots;
+        if(start > 253)
+            throw new IllegalArgumentException("too many parameters: " + method);
+
+        ByteArrayOutputStream codeBytes = new ByteArrayOutputStream();
+        DataOutputStream code = new DataOutputStream(codeBytes);
+        int nanoTime = methodRef(10, "java/lang/System", "nanoTime", "()J");
+        code.writeByte(0xB8);   // invokestatic System.nanoTime
+        code.writeShort(nanoTime);
+        code.writeByte(0x37);   // lstore start
+        code.writeByte(start);
+
+        code.writeByte(0x2A);
+        code.writeByte(0xB4);   // getfield target
+        code.writeShort(fieldRef("target", typeDescriptor));
+        int slot = 1;
+        for(Class<?> parameter : method.getParameterTypes()) {
+            code.writeByte(loadOpcode(parameter));
+            code.writeByte(slot);
+            slot += slots(parameter);
+        }
+        code.writeByte(0xB9);   // invokeinterface
+        code.writeShort(methodRef(11, typeName, method.getName(), TimingProxyFactory.descriptor(method)));
+        code.writeByte(1 + argumentSlots);
+        code.writeByte(0);
+
+        // 返回值留在操作数栈底, 记录完再返回
+        code.writeByte(0x2A);
+        code.writeByte(0xB4);
+        code.writeShort(fieldRef("collector", "L" + COLLECTOR + ";"));
+        code.writeByte(0x2A);
+        code.writeByte(0xB4);
+        code.writeShort(fieldRef("id" + index, "I"));
+        code.writeByte(0x16);   // lload start
+        code.writeByte(start);
+        code.writeByte(0xB8);
+        code.writeShort(nanoTime);
+        code.writeByte(0x16);
+        code.writeByte(start);
+        code.writeByte(0x65);   // lsub
+        code.writeByte(0xB6);   // invokevirtual MetricsCollector.recordRequest(IJJ)V
+        code.writeShort(methodRef(10, COLLECTOR, "recordRequest", "(IJJ)V"));
+        code.writeByte(returnOpcode(method.getReturnType()));
+
+        body.writeShort(0x0001 | 0x0010);   // ACC_PUBLIC | ACC_FINAL
+        body.writeShort(utf8(method.getName()));
+        body.writeShort(utf8(TimingProxyFactory.descriptor(method)));
+        int resultSlots = method.getReturnType() == void.class ? 0 : slots(method.getReturnType());
+        writeCode(body, codeBytes.toByteArray(), Math.max(1 + argumentSlots, resultSlots + 8), start + 2);
+    }
+
+    private void writeCode(DataOutputStream body, byte[] code, int maxStack, int maxLocals) throws IOException {
+        body.writeShort(1);
+        body.writeShort(utf8("Code"));
+        body.writeInt(12 + code.length);
+        body.writeShort(maxStack);
+        body.writeShort(maxLocals);
+        body.writeInt(code.length);
+        body.write(code);
+        body.writeShort(0);   // 异常表
+        body.writeShort(0);   // Code属性
+    }
+
+    private static int slots(Class<?> type) {
+        return type == long.class || type == double.class ? 2 : 1;
+    }
+
+    private static int loadOpcode(Class<?> type) {
+        if(!type.isPrimitive())
+            return 0x19;   // aload
+        if(type == long.class)
+            return 0x16;   // lload
+        if(type == float.class)
+            return 0x17;   // fload
+        if(type == double.class)
+            return 0x18;   // dload
+        return 0x15;   // iload: int/short/char/byte/boolean
+    }
+
+    private static int returnOpcode(Class<?> type) {
+        if(type == void.class)
+            return 0xB1;   // return
+        if(!type.isPrimitive())
+            return 0xB0;   // areturn
+        if(type == long.class)
+            return 0xAD;   // lreturn
+        if(type == float.class)
+            return 0xAE;   // freturn
+        if(type == double.class)
+            return 0xAF;   // dreturn
+        return 0xAC;   // ireturn
+    }
+
+    private int utf8(String value) throws IOException {
+        Integer index = constantIndex.get("U" + value);
+        if(index != null)
+            return index;
+        constants.writeByte(1);
+        constants.writeUTF(value);
+        return addConstant("U" + value);
+    }
+
+    private int classRef(String internalName) throws IOException {
+        Integer index = constantIndex.get("C" + internalName);
+        if(index != null)
+            return index;
+        int name = utf8(internalName);
+        constants.writeByte(7);
+        constants.writeShort(name);
+        return addConstant("C" + internalName);
+    }
+
+    private int nameAndType(String name, String descriptor) throws IOException {
+        String key = "N" + name + ":" + descriptor;
+        Integer index = constantIndex.get(key);
+        if(index != null)
+            return index;
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        constants.writeByte(12);
+        constants.writeShort(nameIndex);
+        constants.writeShort(descriptorIndex);
+        return addConstant(key);
+    }
+
+    private int fieldRef(String name, String descriptor) throws IOException {
+        return methodRef(9, CLASS_NAME, name, descriptor);
+    }
+
+    /**
+     * tag: 9 字段, 10 类方法, 11 接口方法
+     */
+    private int methodRef(int tag, String owner, String name, String descriptor) throws IOException {
+        String key = tag + owner + "." + name + ":" + descriptor;
+        Integer index = constantIndex.get(key);
+        if(index != null)
+            return index;
+        int ownerIndex = classRef(owner);
+        int nameAndTypeIndex = nameAndType(name, descriptor);
+        constants.writeByte(tag);
+        constants.writeShort(ownerIndex);
+        constants.writeShort(nameAndTypeIndex);
+        return addConstant(key);
+    }
+
+    private int addConstant(String key) {
+        constantIndex.put(key, constantCount);
+        return constantCount++;
+    }
+}